@@ -0,0 +1,61 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the benchmark suites with the GC profiler at 1, 2, 4 .. N threads and writes one JSON
+ * result file per thread count, so later runs can be compared against them.
+ *
+ * Usage: java [-Dthreads=N] [-Dresults=dir] -jar benchmarks.jar [include regex]
+ * N defaults to the number of processors, dir to jmh-results.
+ */
+public class BenchmarkRunner {
+
+  private BenchmarkRunner() {
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    String include = args.length > 0 ? args[0] : "com.google.wallet.online.jwt.benchmarks.*";
+    int maxThreads = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+    File results = new File(System.getProperty("results", "jmh-results"));
+    if (!results.isDirectory() && !results.mkdirs()) {
+      throw new IllegalStateException("Cannot create result directory " + results);
+    }
+
+    for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+      Options options = new OptionsBuilder()
+          .include(include)
+          .threads(threads)
+          .addProfiler(GCProfiler.class)
+          .resultFormat(ResultFormatType.JSON)
+          .result(new File(results, "jmh-" + threads + "t.json").getPath())
+          .build();
+      new Runner(options).run();
+      if (threads >= maxThreads) {
+        break;
+      }
+    }
+  }
+}
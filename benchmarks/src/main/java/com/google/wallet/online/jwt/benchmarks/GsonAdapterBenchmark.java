@@ -0,0 +1,90 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.wallet.online.jwt.JwtRequests.FullWalletContainer;
+import com.google.wallet.online.jwt.LineItem;
+import com.google.wallet.online.jwt.util.CartReader;
+import com.google.wallet.online.jwt.util.GsonHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the hand-written wallet adapters registered by {@link GsonHelper} on a full wallet
+ * request, and {@link CartReader} on the cart posted to /fwr. Run with the GC profiler to see
+ * the allocation per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GsonAdapterBenchmark {
+
+  /**
+   * Full wallet request with a cart of {@link #cartSize} line items, as an object and as JSON.
+   */
+  @State(Scope.Benchmark)
+  public static class FullWallet {
+    @Param({"1", "10", "100", "500"})
+    int cartSize;
+
+    final Gson gson = GsonHelper.getGson();
+    final CartReader cartReader = new CartReader("USD", 1000, 1000, 1 << 20);
+
+    FullWalletContainer container;
+    String json;
+    String cartJson;
+
+    @Setup
+    public void setUp() {
+      container = JwtFixtures.fullWallet(cartSize);
+      json = gson.toJson(container);
+      cartJson = gson.toJsonTree(container).getAsJsonObject().getAsJsonObject("request")
+          .getAsJsonObject("cart").get("lineItems").toString();
+    }
+  }
+
+  @Benchmark
+  public JsonElement toJsonTree(FullWallet state) {
+    return state.gson.toJsonTree(state.container);
+  }
+
+  @Benchmark
+  public FullWalletContainer fromJson(FullWallet state) {
+    return state.gson.fromJson(state.json, FullWalletContainer.class);
+  }
+
+  @Benchmark
+  public List<LineItem> readCart(FullWallet state) throws CartReader.InvalidCartException {
+    return state.cartReader.read(state.cartJson);
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.benchmarks;
+
+import com.google.wallet.online.jwt.Cart;
+import com.google.wallet.online.jwt.FullWalletRequest;
+import com.google.wallet.online.jwt.JwtRequests;
+import com.google.wallet.online.jwt.JwtRequests.FullWalletContainer;
+import com.google.wallet.online.jwt.JwtRequests.MaskedWalletContainer;
+import com.google.wallet.online.jwt.JwtRequests.TransactionStatusContainer;
+import com.google.wallet.online.jwt.LineItem;
+import com.google.wallet.online.jwt.MaskedWalletRequest;
+import com.google.wallet.online.jwt.Money;
+import com.google.wallet.online.jwt.Pay;
+import com.google.wallet.online.jwt.Ship;
+import com.google.wallet.online.jwt.TransactionStatusNotification;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the request containers used by the benchmarks, shaped like the ones the servlets send.
+ */
+final class JwtFixtures {
+
+  static final String SECRET = "benchmark_merchant_auth_key";
+  static final String MERCHANT_ID = "benchmark_merchant_id";
+  static final String ORIGIN = "https://instantbuy-sample.appspot.com";
+  static final String CLIENT_ID = "benchmark_client_id.apps.googleusercontent.com";
+  static final String MERCHANT_NAME = "Bike Store";
+  static final String GID = "8a3c4b76-5ad6-4a4a-9b13-1d4e42a0f6a1";
+
+  private JwtFixtures() {
+  }
+
+  static MaskedWalletContainer maskedWallet() {
+    long now = System.currentTimeMillis() / 1000L;
+    return JwtRequests.newMaskedWalletBuilder()
+        .setIat(now)
+        .setExp(now + 3600)
+        .setIss(MERCHANT_ID)
+        .setRequest(MaskedWalletRequest.newBuilder()
+            .setClientId(CLIENT_ID)
+            .setOrigin(ORIGIN)
+            .setMerchantName(MERCHANT_NAME)
+            .setGoogleTransactionId(GID)
+            .setShip(new Ship())
+            .setPay(Pay.newBuilder()
+                .setCurrencyCode("USD")
+                .setEstimatedTotalPrice(Money.parse("1210.00", "USD")).build())
+            .build()).build();
+  }
+
+  /**
+   * @param cartSize number of product line items, tax and shipping are added on top.
+   */
+  static FullWalletContainer fullWallet(int cartSize) {
+    long now = System.currentTimeMillis() / 1000L;
+    List<LineItem> items = new ArrayList<LineItem>(cartSize + 2);
+    for (int i = 0; i < cartSize; i++) {
+      items.add(LineItem.newBuilder()
+          .setDescription("GBike model " + i + ", a light, fast bike with an upright position.")
+          .setQuantity(1 + i % 3)
+          .setUnitPrice(Money.ofMinorUnits(30000 + 99 * i, "USD"))
+          .build());
+    }
+    items.add(LineItem.newBuilder()
+        .setDescription("Tax")
+        .setRole(LineItem.Role.TAX)
+        .setTotalPrice(Money.parse("8.00", "USD"))
+        .build());
+    items.add(LineItem.newBuilder()
+        .setDescription("shipping detail")
+        .setRole(LineItem.Role.SHIPPING)
+        .setTotalPrice(Money.parse("9.99", "USD"))
+        .build());
+    Cart cart = Cart.newBuilder()
+        .setCurrencyCode("USD")
+        .setLineItems(items)
+        .build();
+
+    return JwtRequests.newFullWalletBuilder()
+        .setIat(now)
+        .setExp(now + 3600)
+        .setIss(MERCHANT_ID)
+        .setRequest(FullWalletRequest.newBuilder()
+            .setOrigin(ORIGIN)
+            .setClientId(CLIENT_ID)
+            .setGoogleTransactionId(GID)
+            .setMerchantName(MERCHANT_NAME)
+            .setCart(cart.toBuilder()
+                .setTotalPrice(cart.getLineItemsTotal())
+                .build())
+            .build()).build();
+  }
+
+  static TransactionStatusContainer transactionStatus() {
+    long now = System.currentTimeMillis() / 1000L;
+    return JwtRequests.newTransactionStatusBuilder()
+        .setIat(now)
+        .setExp(now + 3600)
+        .setIss(MERCHANT_ID)
+        .setRequest(TransactionStatusNotification.newBuilder()
+            .setMerchantName(MERCHANT_NAME)
+            .setGoogleTransactionId(GID)
+            .setStatus(TransactionStatusNotification.Status.SUCCESS).build()).build();
+  }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.benchmarks;
+
+import com.google.wallet.online.jwt.BaseJwt;
+import com.google.wallet.online.jwt.JwtRequests.FullWalletContainer;
+import com.google.wallet.online.jwt.JwtRequests.MaskedWalletContainer;
+import com.google.wallet.online.jwt.JwtRequests.TransactionStatusContainer;
+import com.google.wallet.online.jwt.util.JwtGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link JwtGenerator#javaToJWT} for each request type, and
+ * {@link JwtGenerator#javaToJWTs} on a batch of mixed requests, in parallel and sequentially.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtSigningBenchmark {
+
+  /**
+   * Masked wallet and transaction status requests, which have no cart.
+   */
+  @State(Scope.Benchmark)
+  public static class Requests {
+    MaskedWalletContainer maskedWallet;
+    TransactionStatusContainer transactionStatus;
+
+    @Setup
+    public void setUp() {
+      maskedWallet = JwtFixtures.maskedWallet();
+      transactionStatus = JwtFixtures.transactionStatus();
+    }
+  }
+
+  /**
+   * Full wallet request with a cart of {@link #cartSize} line items.
+   */
+  @State(Scope.Benchmark)
+  public static class FullWallet {
+    @Param({"1", "10", "100", "500"})
+    int cartSize;
+
+    FullWalletContainer container;
+
+    @Setup
+    public void setUp() {
+      container = JwtFixtures.fullWallet(cartSize);
+    }
+  }
+
+  /**
+   * {@link #batchSize} requests, a third of each type, full wallet requests with 10 items.
+   */
+  @State(Scope.Benchmark)
+  public static class Batch {
+    @Param({"8", "64"})
+    int batchSize;
+
+    List<BaseJwt> containers;
+    // One thread less than the cores, the calling thread signs too
+    ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+      executor = Executors.newFixedThreadPool(
+          Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+      containers = new ArrayList<BaseJwt>(batchSize);
+      for (int i = 0; i < batchSize; i++) {
+        switch (i % 3) {
+          case 0:
+            containers.add(JwtFixtures.maskedWallet());
+            break;
+          case 1:
+            containers.add(JwtFixtures.fullWallet(10));
+            break;
+          default:
+            containers.add(JwtFixtures.transactionStatus());
+        }
+      }
+    }
+
+    @TearDown
+    public void tearDown() {
+      executor.shutdown();
+    }
+  }
+
+  @Benchmark
+  public String signMaskedWallet(Requests requests) throws Exception {
+    return JwtGenerator.javaToJWT(requests.maskedWallet, JwtFixtures.SECRET);
+  }
+
+  @Benchmark
+  public String signFullWallet(FullWallet fullWallet) throws Exception {
+    return JwtGenerator.javaToJWT(fullWallet.container, JwtFixtures.SECRET);
+  }
+
+  @Benchmark
+  public String signTransactionStatus(Requests requests) throws Exception {
+    return JwtGenerator.javaToJWT(requests.transactionStatus, JwtFixtures.SECRET);
+  }
+
+  @Benchmark
+  public List<String> signBatch(Batch batch) throws Exception {
+    return JwtGenerator.javaToJWTs(batch.containers, JwtFixtures.SECRET, batch.executor);
+  }
+
+  @Benchmark
+  public List<String> signBatchSequentially(Batch batch) throws Exception {
+    return JwtGenerator.javaToJWTs(batch.containers, JwtFixtures.SECRET);
+  }
+}
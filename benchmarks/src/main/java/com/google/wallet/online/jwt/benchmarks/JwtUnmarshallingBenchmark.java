@@ -0,0 +1,96 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.benchmarks;
+
+import com.google.wallet.online.jwt.JwtRequests.FullWalletContainer;
+import com.google.wallet.online.jwt.JwtRequests.MaskedWalletContainer;
+import com.google.wallet.online.jwt.JwtRequests.TransactionStatusContainer;
+import com.google.wallet.online.jwt.util.JwtGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link JwtGenerator#jwtToJava}, verification plus Gson unmarshalling, for each request
+ * type.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtUnmarshallingBenchmark {
+
+  /**
+   * Signed masked wallet and transaction status tokens.
+   */
+  @State(Scope.Benchmark)
+  public static class Tokens {
+    String maskedWallet;
+    String transactionStatus;
+
+    @Setup
+    public void setUp() throws Exception {
+      maskedWallet = JwtGenerator.javaToJWT(JwtFixtures.maskedWallet(), JwtFixtures.SECRET);
+      transactionStatus =
+          JwtGenerator.javaToJWT(JwtFixtures.transactionStatus(), JwtFixtures.SECRET);
+    }
+  }
+
+  /**
+   * Signed full wallet token with a cart of {@link #cartSize} line items.
+   */
+  @State(Scope.Benchmark)
+  public static class FullWalletToken {
+    @Param({"1", "10", "100", "500"})
+    int cartSize;
+
+    String jwt;
+
+    @Setup
+    public void setUp() throws Exception {
+      jwt = JwtGenerator.javaToJWT(JwtFixtures.fullWallet(cartSize), JwtFixtures.SECRET);
+    }
+  }
+
+  @Benchmark
+  public MaskedWalletContainer unmarshalMaskedWallet(Tokens tokens) throws Exception {
+    return JwtGenerator.jwtToJava(
+        MaskedWalletContainer.class, tokens.maskedWallet, JwtFixtures.SECRET);
+  }
+
+  @Benchmark
+  public FullWalletContainer unmarshalFullWallet(FullWalletToken token) throws Exception {
+    return JwtGenerator.jwtToJava(FullWalletContainer.class, token.jwt, JwtFixtures.SECRET);
+  }
+
+  @Benchmark
+  public TransactionStatusContainer unmarshalTransactionStatus(Tokens tokens) throws Exception {
+    return JwtGenerator.jwtToJava(
+        TransactionStatusContainer.class, tokens.transactionStatus, JwtFixtures.SECRET);
+  }
+}
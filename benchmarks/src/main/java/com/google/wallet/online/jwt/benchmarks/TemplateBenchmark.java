@@ -0,0 +1,96 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.benchmarks;
+
+import com.google.imaginary.server.multi.TemplateEngine;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.Velocity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.CharArrayWriter;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders index.vm as the main servlet does, with the templates parsed once by
+ * {@link TemplateEngine} and with {@code Velocity.mergeTemplate} set up as the servlet used to,
+ * which looks the template up again for every page.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Engines {
+    TemplateEngine engine;
+
+    @Setup
+    public void setUp() throws Exception {
+      engine = new TemplateEngine("index.vm");
+      Properties properties = new Properties();
+      properties.put("resource.loader", "class");
+      properties.put("class.resource.loader.class",
+          "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+      properties.put(
+          "runtime.log.logsystem.class", "org.apache.velocity.runtime.log.NullLogChute");
+      Velocity.init(properties);
+    }
+  }
+
+  /**
+   * Context of a signed in user and the writer the page goes to, reused by each thread.
+   */
+  @State(Scope.Thread)
+  public static class Page {
+    final CharArrayWriter out = new CharArrayWriter(16384);
+    VelocityContext context;
+
+    @Setup
+    public void setUp() {
+      context = new VelocityContext();
+      context.put("clientId", "123456789.apps.googleusercontent.com");
+      context.put("scopes", "email profile");
+      context.put("email", "shopper@example.com");
+    }
+  }
+
+  @Benchmark
+  public int cachedTemplate(Engines engines, Page page) throws Exception {
+    page.out.reset();
+    engines.engine.render("index.vm", page.context, page.out);
+    return page.out.size();
+  }
+
+  @Benchmark
+  public int mergeTemplate(Engines engines, Page page) throws Exception {
+    page.out.reset();
+    Velocity.mergeTemplate("index.vm", "UTF-8", page.context, page.out);
+    return page.out.size();
+  }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.imaginary.server.async;
+
+import com.google.imaginary.server.config.Config;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet 3 front for one of the synchronous JWT servlets. The request is put in asynchronous
+ * mode and the wrapped servlet runs on the {@link JwtExecutor} pool, so the container thread is
+ * free while the token is signed or verified. The wrapped servlet is named by the delegate
+ * init-param, for example:
+ *
+ * <pre>
+ * &lt;servlet-class&gt;com.google.imaginary.server.async.AsyncJwtServlet&lt;/servlet-class&gt;
+ * &lt;init-param&gt;
+ *   &lt;param-name&gt;delegate&lt;/param-name&gt;
+ *   &lt;param-value&gt;com.google.imaginary.server.MaskedWalletRequestServlet&lt;/param-value&gt;
+ * &lt;/init-param&gt;
+ * &lt;async-supported&gt;true&lt;/async-supported&gt;
+ * </pre>
+ *
+ * When the pool's queue is full the request is answered with a 503 right away, and a request
+ * that waited in the queue longer than the configured timeout gets a 503 instead of being run.
+ * Once a request runs it always completes, the container's own async timeout is disabled so it
+ * can never recycle a request a worker is still using.
+ */
+public class AsyncJwtServlet extends HttpServlet {
+
+  private static final Logger logger = Logger.getLogger(AsyncJwtServlet.class.getSimpleName());
+
+  private static final AtomicLong rejected = new AtomicLong();
+  private static final AtomicLong expired = new AtomicLong();
+
+  private HttpServlet delegate;
+
+  @Override
+  public void init() throws ServletException {
+    String className = getInitParameter("delegate");
+    if (className == null) {
+      throw new ServletException("Missing delegate init-param");
+    }
+    try {
+      delegate = (HttpServlet) Class.forName(className).getDeclaredConstructor().newInstance();
+    } catch (Exception e) {
+      throw new ServletException("Cannot create delegate " + className, e);
+    }
+    delegate.init(getServletConfig());
+  }
+
+  @Override
+  public void destroy() {
+    delegate.destroy();
+  }
+
+  /**
+   * @return number of requests turned away because the queue was full.
+   */
+  public static long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * @return number of requests answered with a 503 after waiting too long in the queue.
+   */
+  public static long getExpiredCount() {
+    return expired.get();
+  }
+
+  @Override
+  protected void service(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    final AsyncContext async = req.startAsync(req, resp);
+    async.setTimeout(0);
+    final long queuedAt = System.currentTimeMillis();
+    try {
+      JwtExecutor.get().execute(new Runnable() {
+        public void run() {
+          handle(async, queuedAt);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      logger.log(Level.WARNING, "JWT executor is full, rejecting request");
+      try {
+        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      } finally {
+        async.complete();
+      }
+    }
+  }
+
+  private void handle(AsyncContext async, long queuedAt) {
+    HttpServletRequest req = (HttpServletRequest) async.getRequest();
+    HttpServletResponse resp = (HttpServletResponse) async.getResponse();
+    try {
+      if (System.currentTimeMillis() - queuedAt > Config.ASYNC_QUEUE_TIMEOUT_MILLIS) {
+        expired.incrementAndGet();
+        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      } else {
+        delegate.service(req, resp);
+      }
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Asynchronous request failed", e);
+      if (!resp.isCommitted()) {
+        try {
+          resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } catch (IOException ignored) {
+          // the client is gone
+        }
+      }
+    } finally {
+      async.complete();
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.imaginary.server.async;
+
+import com.google.imaginary.server.config.Config;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The bounded pool the asynchronous JWT servlets sign and verify on. It has a fixed number of
+ * threads and a fixed queue, and rejects work once both are full rather than growing.
+ */
+final class JwtExecutor {
+
+  private static final Logger logger = Logger.getLogger(JwtExecutor.class.getSimpleName());
+
+  private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+      Config.ASYNC_THREADS, Config.ASYNC_THREADS, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(Config.ASYNC_QUEUE_DEPTH), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "jwt-worker-" + count.incrementAndGet());
+          // never keep the container from shutting down
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private JwtExecutor() {
+  }
+
+  static ThreadPoolExecutor get() {
+    return executor;
+  }
+
+  /**
+   * Stops taking requests and waits for those queued or running to complete, so no worker
+   * outlives the webapp.
+   *
+   * @param timeoutMillis how long to wait for them.
+   */
+  static void shutdown(long timeoutMillis) {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        logger.log(Level.WARNING, "JWT workers still busy after {0} ms, interrupting them",
+            timeoutMillis);
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.imaginary.server.async;
+
+import com.google.imaginary.server.config.Config;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Shuts the {@link JwtExecutor} pool down with the webapp, after the requests in flight have
+ * completed, so an undeploy doesn't leave its workers running.
+ */
+public class JwtExecutorListener implements ServletContextListener {
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    JwtExecutor.shutdown(Config.SHUTDOWN_TIMEOUT_MILLIS);
+  }
+}
@@ -0,0 +1,423 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.imaginary.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.imaginary.server.config.Config;
+import com.google.imaginary.server.config.Merchant;
+import com.google.wallet.online.jwt.BaseJwt;
+import com.google.wallet.online.jwt.JwtRequests.FullWalletContainer;
+import com.google.wallet.online.jwt.JwtRequests.MaskedWalletContainer;
+import com.google.wallet.online.jwt.Money;
+import com.google.wallet.online.jwt.util.CartReader;
+import com.google.wallet.online.jwt.util.IdempotentTokenStore;
+import com.google.wallet.online.jwt.util.JwtGenerator;
+import com.google.wallet.online.jwt.util.SignedTokenCache;
+import com.google.wallet.online.jwt.util.TransactionLedger;
+import com.google.wallet.online.jwt.util.TransactionRegistry;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Signs several wallet JWTs in one round trip. The body is a JSON array of requests, each an
+ * object with a type of mwr, fwr or tsn and the parameters the servlet of that type takes:
+ *
+ * <pre>
+ * [{"type": "mwr", "total": "12.5"},
+ *  {"type": "fwr", "gid": "...", "arrCart": [...], "tax": "1.00", "shipping": "2.00",
+ *   "totalPrice": "15.50"},
+ *  {"type": "tsn", "gid": "..."}]
+ * </pre>
+ *
+ * The response is a JSON array of the signed JWTs in the same order. If any request is
+ * invalid, none is signed and the response is a 400 naming the first bad one, or a 409 if it
+ * doesn't fit the state of its transaction, as for the single requests. Masked wallet requests
+ * share the cache of /mwr, and full wallet requests with a gid the replay store of /fwr, so a
+ * repeated request gets the token already signed for it and a different cart for a gid gets a
+ * 409, as it would from /fwr. The other requests are signed together.
+ */
+public class BatchServlet extends HttpServlet {
+
+  private static final Logger logger = Logger.getLogger(BatchServlet.class.getSimpleName());
+
+  private static final Map<String, TransactionRegistry.Event> EVENTS =
+      new HashMap<String, TransactionRegistry.Event>();
+  static {
+    EVENTS.put("mwr", TransactionRegistry.Event.MASKED_WALLET);
+    EVENTS.put("fwr", TransactionRegistry.Event.FULL_WALLET);
+    EVENTS.put("tsn", TransactionRegistry.Event.STATUS);
+  }
+
+  private static final TransactionRegistry registry =
+      TransactionStatusNotificationServlet.getRegistry();
+
+  // null signs on the request thread, the pool starts its threads on first use
+  private ExecutorService pool;
+
+  @Override
+  public void init() {
+    if (Config.BATCH_PARALLELISM <= 1) {
+      return;
+    }
+    // The request thread signs too, so the pool has one thread less than the parallelism
+    pool = new ThreadPoolExecutor(Config.BATCH_PARALLELISM - 1, Config.BATCH_PARALLELISM - 1, 0L,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "batch-signer-" + count.incrementAndGet());
+            // never keep the container from shutting down
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  @Override
+  public void destroy() {
+    if (pool != null) {
+      // the container lets the requests in flight finish before destroying the servlet
+      pool.shutdown();
+    }
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String body = readBody(req.getReader());
+    if (body == null) {
+      resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+          "Batch is larger than " + Config.BATCH_MAX_BYTES + " characters");
+      return;
+    }
+
+    JsonArray requests;
+    try {
+      JsonElement parsed = new JsonParser().parse(body);
+      if (!parsed.isJsonArray()) {
+        resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Batch is not a JSON array");
+        return;
+      }
+      requests = parsed.getAsJsonArray();
+    } catch (JsonParseException e) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Batch is not valid JSON");
+      return;
+    }
+    if (requests.size() > Config.BATCH_MAX_REQUESTS) {
+      resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+          "Batch has more than " + Config.BATCH_MAX_REQUESTS + " requests");
+      return;
+    }
+
+    String origin = Config.getDomain(req);
+    Merchant merchant = Config.getMerchant(req);
+    List<BaseJwt> containers = new ArrayList<BaseJwt>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      try {
+        containers.add(buildContainer(merchant, origin, requests.get(i)));
+      } catch (CartReader.InvalidCartException e) {
+        logger.log(Level.FINE, "Batch rejected", e);
+        resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "Request " + i + ": " + e.getMessage());
+        return;
+      }
+    }
+
+    // Record every transition first, a refused one undoes those before it
+    Transition[] transitions = new Transition[requests.size()];
+    for (int i = 0; i < transitions.length; i++) {
+      JsonObject request = requests.get(i).getAsJsonObject();
+      String gid = getString(request, "gid");
+      if (gid == null) {
+        continue;
+      }
+      TransactionRegistry.Event event = EVENTS.get(getString(request, "type"));
+      try {
+        transitions[i] = new Transition(gid, event, registry.advance(gid, event));
+      } catch (TransactionRegistry.IllegalTransitionException e) {
+        logger.log(Level.WARNING, "Batch refused: {0}", e.getMessage());
+        revert(transitions);
+        resp.sendError(HttpServletResponse.SC_CONFLICT, "Request " + i + ": " + e.getMessage());
+        return;
+      }
+    }
+
+    SignedTokenCache.Token[] tokens = new SignedTokenCache.Token[containers.size()];
+    List<String> jwts = null;
+    int current = 0;
+    try {
+      // A different cart for a gid is refused before anything is signed or stored, unless a
+      // masked wallet request for the gid comes first in the batch
+      byte[][] digests = new byte[containers.size()][];
+      Set<String> masked = new HashSet<String>();
+      for (current = 0; current < containers.size(); current++) {
+        JsonObject request = requests.get(current).getAsJsonObject();
+        String gid = getString(request, "gid");
+        if (gid == null) {
+          continue;
+        }
+        BaseJwt container = containers.get(current);
+        if (container instanceof MaskedWalletContainer) {
+          masked.add(gid);
+        } else if (container instanceof FullWalletContainer) {
+          digests[current] = FullWalletRequestServlet.digest(origin,
+              getString(request, "arrCart"), getString(request, "tax"),
+              getString(request, "shipping"), getString(request, "totalPrice"));
+          if (!masked.contains(gid)) {
+            tokens[current] = FullWalletRequestServlet.replay(merchant, gid, digests[current]);
+          }
+        }
+      }
+
+      List<BaseJwt> rest = new ArrayList<BaseJwt>(containers.size());
+      for (current = 0; current < containers.size(); current++) {
+        BaseJwt container = containers.get(current);
+        if (container instanceof MaskedWalletContainer) {
+          tokens[current] = MaskedWalletRequestServlet.signOrReuse(
+              (MaskedWalletContainer) container, merchant.getMerchantSecret());
+          String gid = getString(requests.get(current).getAsJsonObject(), "gid");
+          if (gid != null) {
+            // the cart may change with the masked wallet, as for /mwr
+            FullWalletRequestServlet.forgetReplay(merchant, gid);
+          }
+        } else if (digests[current] != null && tokens[current] == null) {
+          tokens[current] = FullWalletRequestServlet.sign(merchant,
+              getString(requests.get(current).getAsJsonObject(), "gid"), digests[current],
+              (FullWalletContainer) container);
+        } else if (tokens[current] == null) {
+          rest.add(container);
+        }
+      }
+
+      Iterator<String> signed =
+          JwtGenerator.javaToJWTs(rest, merchant.getMerchantSecret(), pool).iterator();
+      List<String> all = new ArrayList<String>(containers.size());
+      for (SignedTokenCache.Token token : tokens) {
+        all.add(token != null ? token.getJwt() : signed.next());
+      }
+      jwts = all;
+    } catch (IdempotentTokenStore.ConflictException e) {
+      String gid = getString(requests.get(current).getAsJsonObject(), "gid");
+      logger.log(Level.WARNING, "Batch refused, request {0} reuses gid {1}",
+          new Object[] {current, gid});
+      resp.sendError(HttpServletResponse.SC_CONFLICT,
+          "Request " + current + ": A different request was already signed for " + gid);
+      return;
+    } catch (InvalidKeyException e) {
+      logger.log(Level.SEVERE, "Invalid key exception ", e);
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      return;
+    } catch (SignatureException e) {
+      logger.log(Level.SEVERE, "Signature exception ", e);
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      return;
+    } finally {
+      if (jwts == null) {
+        revert(transitions);
+      }
+    }
+
+    // Nothing is sent unless all of it is in the ledger, or queued for it
+    boolean recorded = false;
+    try {
+      if (!record(requests, containers, jwts, tokens)) {
+        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Status queue is full");
+        return;
+      }
+      recorded = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    } finally {
+      if (!recorded) {
+        revert(transitions);
+      }
+    }
+
+    // JWTs are base64url and dots, nothing in them needs escaping
+    resp.setContentType("application/json");
+    PrintWriter pw = resp.getWriter();
+    pw.write('[');
+    for (int i = 0; i < jwts.size(); i++) {
+      if (i > 0) {
+        pw.write(',');
+      }
+      pw.write('"');
+      pw.write(jwts.get(i));
+      pw.write('"');
+    }
+    pw.write(']');
+  }
+
+  /**
+   * Builds the container for one request of the batch.
+   *
+   * @throws CartReader.InvalidCartException if the request is invalid.
+   */
+  private static BaseJwt buildContainer(Merchant merchant, String origin, JsonElement element)
+      throws CartReader.InvalidCartException {
+    if (!element.isJsonObject()) {
+      throw new CartReader.InvalidCartException("not a JSON object");
+    }
+    JsonObject request = element.getAsJsonObject();
+    String type = getString(request, "type");
+    String gid = getString(request, "gid");
+    if ("mwr".equals(type)) {
+      String total = getString(request, "total");
+      Money totalPrice = null;
+      if (total != null) {
+        try {
+          totalPrice = Money.parseRounded(total, Config.CURRENCY);
+        } catch (NumberFormatException e) {
+          throw new CartReader.InvalidCartException("Invalid total: " + total);
+        }
+      }
+      return MaskedWalletRequestServlet.buildContainer(merchant, origin, gid, totalPrice);
+    } else if ("fwr".equals(type)) {
+      return FullWalletRequestServlet.buildContainer(merchant, origin, gid,
+          getString(request, "arrCart"), getString(request, "tax"),
+          getString(request, "shipping"), getString(request, "totalPrice"));
+    } else if ("tsn".equals(type)) {
+      if (gid == null) {
+        throw new CartReader.InvalidCartException("Missing gid");
+      }
+      return TransactionStatusNotificationServlet.buildContainer(merchant, gid);
+    }
+    throw new CartReader.InvalidCartException("Unknown type: " + type);
+  }
+
+  /**
+   * Records the JWTs of the batch, statuses behind the response like the status servlet does.
+   * The statuses are queued last and all together, so none is queued for a batch that fails.
+   * A token from the cache or replay store is recorded only the first time it is served.
+   *
+   * @param tokens token of each request that came from the cache or replay store, or null.
+   * @return false if the status queue didn't have room for all the statuses.
+   */
+  private static boolean record(JsonArray requests, List<BaseJwt> containers, List<String> jwts,
+      SignedTokenCache.Token[] tokens) throws IOException, InterruptedException {
+    List<TransactionLedger.Record> records =
+        new ArrayList<TransactionLedger.Record>(containers.size());
+    List<TransactionLedger.Record> statuses = new ArrayList<TransactionLedger.Record>();
+    for (int i = 0; i < containers.size(); i++) {
+      JsonObject request = requests.get(i).getAsJsonObject();
+      BaseJwt container = containers.get(i);
+      String gid = getString(request, "gid");
+      TransactionRegistry.Event event = EVENTS.get(getString(request, "type"));
+      if (event == TransactionRegistry.Event.STATUS) {
+        statuses.add(new TransactionLedger.Record(gid, event, container.getIss(), null,
+            container.getIat(), jwts.get(i)));
+        continue;
+      }
+      if (!TransactionLog.isEnabled() || (tokens[i] != null && !tokens[i].markRecorded())) {
+        continue;
+      }
+      Money total = null;
+      if (container instanceof MaskedWalletContainer) {
+        total = ((MaskedWalletContainer) container).getRequest().getPay()
+            .getEstimatedTotalPrice();
+      } else if (container instanceof FullWalletContainer) {
+        total = ((FullWalletContainer) container).getRequest().getCart().getTotalPrice();
+      }
+      long iat = tokens[i] != null ? tokens[i].getIat() : container.getIat();
+      records.add(new TransactionLedger.Record(gid, event, container.getIss(),
+          total == null ? null : total.toString(), iat, jwts.get(i)));
+    }
+    if (!records.isEmpty()) {
+      TransactionLog.recordAll(records);
+    }
+    return statuses.isEmpty() || TransactionLog.recordStatuses(statuses);
+  }
+
+  private static void revert(Transition[] transitions) {
+    for (int i = transitions.length - 1; i >= 0; i--) {
+      Transition transition = transitions[i];
+      if (transition != null) {
+        registry.revert(transition.gid, TransactionRegistry.State.after(transition.previous,
+            transition.event), transition.previous);
+      }
+    }
+  }
+
+  /**
+   * @return the member as a string, arrays and objects as their JSON, null if missing.
+   */
+  private static String getString(JsonObject object, String name) {
+    JsonElement value = object.get(name);
+    if (value == null || value.isJsonNull()) {
+      return null;
+    }
+    return value.isJsonPrimitive() ? value.getAsString() : value.toString();
+  }
+
+  /**
+   * @return the whole body, or null if it is longer than the configured limit.
+   */
+  private static String readBody(Reader reader) throws IOException {
+    StringBuilder body = new StringBuilder();
+    char[] buffer = new char[4096];
+    int read;
+    while ((read = reader.read(buffer)) != -1) {
+      if (body.length() + read > Config.BATCH_MAX_BYTES) {
+        return null;
+      }
+      body.append(buffer, 0, read);
+    }
+    return body.toString();
+  }
+
+  /**
+   * A transition recorded for one request of the batch.
+   */
+  private static final class Transition {
+    final String gid;
+    final TransactionRegistry.Event event;
+    final TransactionRegistry.State previous;
+
+    Transition(String gid, TransactionRegistry.Event event, TransactionRegistry.State previous) {
+      this.gid = gid;
+      this.event = event;
+      this.previous = previous;
+    }
+  }
+}
@@ -16,19 +16,21 @@
 
 package com.google.imaginary.server;
 
-import com.google.gson.reflect.TypeToken;
 import com.google.imaginary.server.config.Config;
+import com.google.imaginary.server.config.Merchant;
 import com.google.wallet.online.jwt.Cart;
 import com.google.wallet.online.jwt.FullWalletRequest;
 import com.google.wallet.online.jwt.JwtRequests;
 import com.google.wallet.online.jwt.JwtRequests.FullWalletContainer;
 import com.google.wallet.online.jwt.LineItem;
-import com.google.wallet.online.jwt.util.GsonHelper;
+import com.google.wallet.online.jwt.Money;
+import com.google.wallet.online.jwt.util.CartReader;
+import com.google.wallet.online.jwt.util.IdempotentTokenStore;
 import com.google.wallet.online.jwt.util.JwtGenerator;
+import com.google.wallet.online.jwt.util.SignedTokenCache;
+import com.google.wallet.online.jwt.util.TransactionRegistry;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.lang.reflect.Type;
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
 import java.util.Date;
@@ -50,6 +52,70 @@ public class FullWalletRequestServlet extends HttpServlet {
   private static final Logger logger =
       Logger.getLogger(FullWalletRequestServlet.class.getSimpleName());
 
+  private static final CartReader cartReader = new CartReader(Config.CURRENCY,
+      Config.CART_MAX_ITEMS, Config.CART_MAX_DESCRIPTION_LENGTH, Config.CART_MAX_BYTES);
+
+  // Mobile clients retry the same request on flaky networks
+  private static final IdempotentTokenStore replayStore =
+      new IdempotentTokenStore(Config.FWR_REPLAY_STORE_SIZE);
+
+  /**
+   * @return the store of signed requests per gid, for monitoring its replay and conflict counts.
+   */
+  public static IdempotentTokenStore getReplayStore() {
+    return replayStore;
+  }
+
+  /**
+   * Drops the request stored for gid, so the next one is signed afresh, e.g. with a cart changed
+   * along with the masked wallet.
+   */
+  static void forgetReplay(Merchant merchant, String gid) {
+    replayStore.remove(replayKey(merchant, gid));
+  }
+
+  /**
+   * Digest of the posted fields a request is replayed by, also used by {@link BatchServlet}.
+   */
+  static byte[] digest(String origin, String cartJson, String tax, String shipping,
+      String totalPrice) {
+    return IdempotentTokenStore.digest(origin, cartJson, tax, shipping, totalPrice);
+  }
+
+  /**
+   * Returns the token stored for a replay of the request for gid, also used by
+   * {@link BatchServlet}.
+   *
+   * @return the stored token, or null if none is stored for gid.
+   * @throws IdempotentTokenStore.ConflictException if a different request was stored for gid.
+   */
+  static SignedTokenCache.Token replay(Merchant merchant, String gid, byte[] digest)
+      throws InvalidKeyException, IdempotentTokenStore.ConflictException {
+    return replayStore.replay(replayKey(merchant, gid), digest, merchant.getMerchantId(),
+        merchant.getMerchantSecret());
+  }
+
+  /**
+   * Signs the request for gid and stores it for replays, also used by {@link BatchServlet}.
+   *
+   * @return the stored token, that of a concurrent identical request if it was first.
+   * @throws IdempotentTokenStore.ConflictException if a different request was stored for gid.
+   */
+  static SignedTokenCache.Token sign(Merchant merchant, String gid, byte[] digest,
+      FullWalletContainer container) throws InvalidKeyException, SignatureException,
+      IdempotentTokenStore.ConflictException {
+    return replayStore.sign(replayKey(merchant, gid), digest, container,
+        merchant.getMerchantSecret());
+  }
+
+  /**
+   * The stored JWT carries the merchant's name and client id, so a reload that changes them
+   * must not replay it.
+   */
+  private static String replayKey(Merchant merchant, String gid) {
+    return SignedTokenCache.key(gid, merchant.getMerchantName(), merchant.getOAuthClientId());
+  }
+
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     generateJwtContainer(req, resp);
@@ -65,7 +131,12 @@ public class FullWalletRequestServlet extends HttpServlet {
    * Description - Description of the object.
    * Quantity - Number of items purchased.
    * Unit price - Unit price of an item.
-   * Per item gid - Google transaction ID.
+   * Per item gid - Google transaction ID. A request repeated with the same gid gets the same
+   * JWT, a different request with the same gid gets a 409 while that JWT is unexpired, unless
+   * a masked wallet request for the gid came in since. Refused once the transaction status was
+   * sent.
+   * Format - envelope to answer with a {@link TokenEnvelope} instead of the bare JWT.
+   * Validate - with format=envelope, a JWT to validate in the same round trip.
    * @param req {@link HttpServletRequest}
    * @param resp {@link HttpServletResponse}
    * @throws IOException
@@ -73,62 +144,169 @@ public class FullWalletRequestServlet extends HttpServlet {
   private void generateJwtContainer(HttpServletRequest req, HttpServletResponse resp)
       throws IOException {
     String origin = Config.getDomain(req);
-
-    String arrCart = req.getParameter("arrCart");
+    String gid = req.getParameter("gid");
+    String cartJson = req.getParameter("arrCart");
     String tax = req.getParameter("tax");
     String shipping = req.getParameter("shipping");
-    double totalPrice = Double.parseDouble(req.getParameter("totalPrice"));
+    String totalPrice = req.getParameter("totalPrice");
+    Merchant merchant = Config.getMerchant(req);
+    String merchantSecret = merchant.getMerchantSecret();
+
+    // No full wallet once the transaction status was sent
+    TransactionRegistry.State previous = null;
+    if (gid != null) {
+      try {
+        previous = TransactionStatusNotificationServlet.getRegistry().advance(
+            gid, TransactionRegistry.Event.FULL_WALLET);
+      } catch (TransactionRegistry.IllegalTransitionException e) {
+        logger.log(Level.WARNING, "Full wallet request refused: {0}", e.getMessage());
+        resp.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+        return;
+      }
+    }
+
+    boolean signed = false;
+    try {
+      // A retried request gets the token already signed for it, without parsing the cart again
+      byte[] digest = null;
+      if (gid != null) {
+        digest = digest(origin, cartJson, tax, shipping, totalPrice);
+        SignedTokenCache.Token token = replay(merchant, gid, digest);
+        if (token != null) {
+          write(req, resp, token, merchant.getMerchantId(), gid, totalPrice);
+          signed = true;
+          return;
+        }
+      }
+
+      FullWalletContainer container;
+      try {
+        container = buildContainer(merchant, origin, gid, cartJson, tax, shipping, totalPrice);
+      } catch (CartReader.InvalidCartException e) {
+        logger.log(Level.FINE, "Cart rejected", e);
+        resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        return;
+      }
+
+      if (gid != null) {
+        write(req, resp, sign(merchant, gid, digest, container),
+            container.getIss(), gid, container.getRequest().getCart().getTotalPrice().toString());
+      } else {
+        String str = JwtGenerator.javaToJWT(container, merchantSecret);
+        TransactionLog.record(TransactionRegistry.Event.FULL_WALLET, null, container.getIss(),
+            container.getRequest().getCart().getTotalPrice().toString(), container.getIat(), str);
+        if (TokenEnvelope.isRequested(req)) {
+          TokenEnvelope.write(req, resp, str, container, container.getIat(), container.getExp(),
+              null);
+        } else {
+          resp.getWriter().write(str);
+        }
+      }
+      signed = true;
+    } catch (IdempotentTokenStore.ConflictException e) {
+      logger.log(Level.WARNING, "Full wallet request rejected for gid {0}", gid);
+      resp.sendError(HttpServletResponse.SC_CONFLICT,
+          "A different request was already signed for " + gid);
+    } catch (InvalidKeyException e) {
+
+      logger.log(Level.SEVERE, "Invalid key exception ", e);
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+
+    } catch (SignatureException e) {
+
+      logger.log(Level.SEVERE, "Signature Exception", e);
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+
+    } finally {
+      if (gid != null && !signed) {
+        TransactionStatusNotificationServlet.getRegistry().revert(
+            gid, TransactionRegistry.State.FULL, previous);
+      }
+    }
+  }
+
+  private static void write(HttpServletRequest req, HttpServletResponse resp,
+      SignedTokenCache.Token token, String iss, String gid, String total) throws IOException {
+    // a replayed token was recorded when it was first sent
+    TransactionLog.record(TransactionRegistry.Event.FULL_WALLET, gid, iss, total, token);
+    if (TokenEnvelope.isRequested(req)) {
+      TokenEnvelope.write(req, resp, token.getJwt(), iss, JwtRequests.DEFAULT_AUDIENCE,
+          JwtRequests.FULL_WALLET_REQ_TYP, token.getIat(), token.getExp(), gid);
+    } else {
+      resp.getWriter().write(token.getJwt());
+    }
+  }
+
+  /**
+   * Builds the FullWalletRequest JWT from the posted cart and prices, also used by
+   * {@link BatchServlet}.
+   *
+   * @param merchant merchant the request is for.
+   * @param origin protocol://domain:port of the page.
+   * @param gid Google transaction id.
+   * @param cartJson JSON array of the line items.
+   * @param tax tax amount.
+   * @param shipping shipping amount.
+   * @param totalPrice order total, has to add up to the items, tax and shipping.
+   * @throws CartReader.InvalidCartException if the cart or any of the prices is invalid.
+   */
+  static FullWalletContainer buildContainer(Merchant merchant, String origin, String gid,
+      String cartJson, String tax, String shipping, String totalPrice)
+      throws CartReader.InvalidCartException {
+    List<LineItem> itemList = cartReader.read(cartJson);
+    Money taxPrice;
+    Money shippingPrice;
+    Money total;
+    try {
+      taxPrice = Money.parse(tax, Config.CURRENCY);
+      shippingPrice = Money.parse(shipping, Config.CURRENCY);
+      total = Money.parse(totalPrice, Config.CURRENCY);
+    } catch (NumberFormatException e) {
+      throw new CartReader.InvalidCartException("Invalid price: " + e.getMessage());
+    }
 
-    Type collectionType = new TypeToken<List<LineItem>>(){}.getType();
-    List<LineItem> itemList = GsonHelper.getGson().fromJson(arrCart, collectionType);
     itemList.add(LineItem.newBuilder()
         .setDescription("Tax")
         .setRole(LineItem.Role.TAX)
-        .setTotalPrice(Double.parseDouble(tax))
+        .setTotalPrice(taxPrice)
         .build());
     itemList.add(LineItem.newBuilder()
         .setDescription("shipping detail")
         .setRole(LineItem.Role.SHIPPING)
-        .setTotalPrice(Double.parseDouble(shipping))
+        .setTotalPrice(shippingPrice)
         .build());
+    Cart cart = Cart.newBuilder()
+        .setTotalPrice(total)
+        .setCurrencyCode(Config.CURRENCY)
+        .setLineItems(itemList)
+        .build();
+
+    // The posted total has to add up, to the cent, to the items, tax and shipping
+    Money lineItemsTotal;
+    try {
+      lineItemsTotal = cart.getLineItemsTotal();
+    } catch (ArithmeticException e) {
+      throw new CartReader.InvalidCartException("Cart total is out of range");
+    }
+    if (!lineItemsTotal.equals(total)) {
+      throw new CartReader.InvalidCartException(
+          "Total price " + total + " doesn't match the cart total " + lineItemsTotal);
+    }
     Date date = new Date();
 
-    FullWalletContainer container = JwtRequests.newFullWalletBuilder()
+    return JwtRequests.newFullWalletBuilder()
         .setTyp(JwtRequests.DEFAULT_TYPE)
-        .setIat(date.getTime())
-        .setExp(date.getTime() + 3600)
+        .setIat(date.getTime() / 1000L)
+        .setExp(date.getTime() / 1000L + 3600)
         .setTyp(JwtRequests.FULL_WALLET_REQ_TYP)
         .setAud(JwtRequests.DEFAULT_AUDIENCE)
-        .setIss(Config.getEnvironment().getMerchantId())
+        .setIss(merchant.getMerchantId())
         .setRequest(FullWalletRequest.newBuilder()
             .setOrigin(origin)
-            .setClientId(Config.OAUTH_CLIENT_ID)
-            .setGoogleTransactionId(req.getParameter("gid"))
-            .setMerchantName(Config.MERCHANT_NAME)
-            .setCart(Cart.newBuilder()
-                .setTotalPrice(Double.toString(totalPrice))
-                .setCurrencyCode(Config.CURRENCY)
-                .setLineItems(itemList)
-                .build())
+            .setClientId(merchant.getOAuthClientId())
+            .setGoogleTransactionId(gid)
+            .setMerchantName(merchant.getMerchantName())
+            .setCart(cart)
             .build()).build();
-
-    PrintWriter pw = null;
-    try {
-
-      pw = resp.getWriter();
-      String str = JwtGenerator.javaToJWT(container, Config.getEnvironment().getMerchantSecret());
-      pw.write(str);
-    } catch (InvalidKeyException e) {
-
-      logger.log(Level.SEVERE, "Invalid key exception ", e);
-      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-
-    } catch (SignatureException e) {
-
-      logger.log(Level.SEVERE, "Signature Exception", e);
-      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-
-    }
   }
-
 }
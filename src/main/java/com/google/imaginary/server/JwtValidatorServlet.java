@@ -17,14 +17,14 @@
 package com.google.imaginary.server;
 
 import com.google.imaginary.server.config.Config;
-import com.google.wallet.online.jwt.util.JwtGenerator;
-
-import net.oauth.jsontoken.JsonToken;
+import com.google.imaginary.server.config.Merchant;
+import com.google.wallet.online.jwt.util.JwtPrecheck;
+import com.google.wallet.online.jwt.util.JwtVerifier;
+import com.google.wallet.online.jwt.util.VerifiedTokenCache;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.security.InvalidKeyException;
-import java.security.SignatureException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,11 +35,20 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * This servlet checks the JWT's signature to ensure that it's valid. true or false is returned once
  * the JWT has been checked.
+ * Several JWTs can be checked at once with repeated jwts parameters, which returns a JSON array
+ * of true and false.
  */
 public class JwtValidatorServlet extends HttpServlet {
   
   private static final Logger logger = Logger.getLogger(JwtValidatorServlet.class.getSimpleName());
 
+  // Rejects malformed input before it reaches the HMAC
+  private static final JwtPrecheck precheck = new JwtPrecheck(Config.VALIDATION_MAX_JWT_LENGTH);
+
+  // Repeated validations of the same token are answered from here
+  private static final VerifiedTokenCache tokenCache = new VerifiedTokenCache(
+      Config.VALIDATION_CACHE_SIZE, Config.VALIDATION_CACHE_TTL_SECONDS * 1000L);
+
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     jwtValidator(req, resp);
@@ -50,14 +59,36 @@ public class JwtValidatorServlet extends HttpServlet {
     jwtValidator(req, resp);
   }
 
+  /**
+   * @return the verified token cache, for monitoring its hit, miss and eviction counts.
+   */
+  public static VerifiedTokenCache getTokenCache() {
+    return tokenCache;
+  }
+
+  /**
+   * @return the pre-check pipeline, for monitoring its rejection counts per stage.
+   */
+  public static JwtPrecheck getPrecheck() {
+    return precheck;
+  }
+
   /**
    * The following parameters are parsed:
    * jwt - the jwt to validate
+   * jwts - repeated, jwts to validate in one request, answered with a JSON array of booleans
+   * in the same order
    * @param req {@link HttpServletRequest}
    * @param resp {@link HttpServletResponse}
    * @throws IOException 
    */
   private void jwtValidator(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String[] jwts = req.getParameterValues("jwts");
+    Merchant merchant = Config.getMerchant(req);
+    if (jwts != null) {
+      validateAll(merchant, jwts, resp);
+      return;
+    }
     String jwt = req.getParameter("jwt");
     PrintWriter pw = null;
     try {
@@ -65,17 +96,50 @@ public class JwtValidatorServlet extends HttpServlet {
     } catch (IOException e) {
       e.printStackTrace();
     }
+    pw.write(isValid(merchant, jwt) ? "true" : "false");
+  }
+
+  private void validateAll(Merchant merchant, String[] jwts, HttpServletResponse resp)
+      throws IOException {
+    if (jwts.length > Config.VALIDATION_MAX_BATCH) {
+      resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+          "More than " + Config.VALIDATION_MAX_BATCH + " jwts");
+      return;
+    }
+    resp.setContentType("application/json");
+    PrintWriter pw = resp.getWriter();
+    pw.write('[');
+    for (int i = 0; i < jwts.length; i++) {
+      if (i > 0) {
+        pw.write(',');
+      }
+      pw.write(isValid(merchant, jwts[i]) ? "true" : "false");
+    }
+    pw.write(']');
+  }
+
+  /**
+   * Checks a JWT's signature and expiry with the merchant secret, through the pre-check and
+   * the verified token cache. Also used by the request servlets' envelope responses.
+   *
+   * @param merchant merchant whose secret the JWT is signed with.
+   * @param jwt the jwt to validate, may be null.
+   * @return whether the JWT is valid.
+   */
+  static boolean isValid(Merchant merchant, String jwt) {
+    JwtPrecheck.Stage rejectedBy = precheck.check(jwt);
+    if (rejectedBy != null) {
+      logger.log(Level.FINE, "JWT rejected by pre-check stage {0}", rejectedBy);
+      return false;
+    }
     try {
-      JsonToken jsonToken =
-          JwtGenerator.jwtToJsonToken(jwt, Config.getEnvironment().getMerchantSecret());
-      pw.write("true");
-    } catch (NullPointerException e) {
-      logger.log(Level.SEVERE, "Null Pointer Exception", e);
-      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      JwtVerifier.Result result = tokenCache.verify(merchant.getVerifier(), jwt);
+      if (!result.isValid()) {
+        logger.log(Level.FINE, "JWT rejected: {0}", result.getFailure());
+      }
+      return result.isValid();
     } catch (InvalidKeyException e) {
-      pw.write("false");
-    } catch (SignatureException e) {
-      pw.write("false");
+      return false;
     }
   }
 
@@ -17,12 +17,15 @@
 package com.google.imaginary.server;
 
 import com.google.imaginary.server.config.Config;
+import com.google.imaginary.server.config.Merchant;
 import com.google.wallet.online.jwt.JwtRequests;
 import com.google.wallet.online.jwt.JwtRequests.MaskedWalletContainer;
 import com.google.wallet.online.jwt.MaskedWalletRequest;
+import com.google.wallet.online.jwt.Money;
 import com.google.wallet.online.jwt.Pay;
 import com.google.wallet.online.jwt.Ship;
-import com.google.wallet.online.jwt.util.JwtGenerator;
+import com.google.wallet.online.jwt.util.SignedTokenCache;
+import com.google.wallet.online.jwt.util.TransactionRegistry;
 
 import java.io.IOException;
 import java.security.InvalidKeyException;
@@ -43,6 +46,10 @@ public class MaskedWalletRequestServlet extends HttpServlet {
   private static final Logger logger =
       Logger.getLogger(MaskedWalletRequestServlet.class.getSimpleName());
 
+  // wallet.js posts the same request several times while the buy button reloads
+  private static final SignedTokenCache tokenCache = new SignedTokenCache(
+      Config.MWR_CACHE_SIZE, Config.MWR_CACHE_MIN_REMAINING_SECONDS * 1000L);
+
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     getMaskedWallet(req, resp);
@@ -53,54 +60,139 @@ public class MaskedWalletRequestServlet extends HttpServlet {
     getMaskedWallet(req, resp);
   }
 
+  /**
+   * @return the signed request cache, for monitoring its hit and miss counts.
+   */
+  public static SignedTokenCache getTokenCache() {
+    return tokenCache;
+  }
+
   /**
    * The following parameters are parsed:
    * Total - Order total.
    * Currency - Order currency.
-   * Gid - Google order id for any subsequent.
+   * Gid - Google order id for any subsequent. Refused once the transaction status was sent.
    * MaskedWalletRequest after the initial request
    * Pnr - Phone number required boolean.
+   * Format - envelope to answer with a {@link TokenEnvelope} instead of the bare JWT.
+   * Validate - with format=envelope, a JWT to validate in the same round trip.
    * @param req {@link HttpServletRequest}
    * @param resp {@link HttpServletResponse}
    */
   private void getMaskedWallet(HttpServletRequest req, HttpServletResponse resp)
       throws IOException {
 
-    Date date = new Date();
-    String totalPrice = req.getParameter("total");
+    // The page adds prices up in floating point, round its estimate to the cent
+    Money totalPrice = null;
+    String total = req.getParameter("total");
+    if (total != null) {
+      try {
+        totalPrice = Money.parseRounded(total, Config.CURRENCY);
+      } catch (NumberFormatException e) {
+        resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid total: " + total);
+        return;
+      }
+    }
+
+    // A change of masked wallet is refused once the transaction status was sent
+    String gid = req.getParameter("gid");
+    TransactionRegistry.State previous = null;
+    if (gid != null) {
+      try {
+        previous = TransactionStatusNotificationServlet.getRegistry().advance(
+            gid, TransactionRegistry.Event.MASKED_WALLET);
+      } catch (TransactionRegistry.IllegalTransitionException e) {
+        logger.log(Level.WARNING, "Masked wallet request refused: {0}", e.getMessage());
+        resp.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+        return;
+      }
+    }
 
     // Create MaskedWalletRequest JWT
-    MaskedWalletContainer maskedWalletContainer = JwtRequests.newMaskedWalletBuilder()
-        .setTyp(JwtRequests.DEFAULT_TYPE)
-        .setIat(date.getTime())
-        .setExp(date.getTime() + 3600)
-        .setTyp(JwtRequests.MASKED_WALLET_REQ_TYP)
-        .setAud(JwtRequests.DEFAULT_AUDIENCE)
-        .setIss(Config.getEnvironment().getMerchantId())
-        .setRequest(MaskedWalletRequest.newBuilder()
-            .setClientId(Config.OAUTH_CLIENT_ID)
-            .setOrigin(Config.getDomain(req))
-            .setMerchantName(Config.MERCHANT_NAME)
-            .setGoogleTransactionId(req.getParameter("gid"))
-            .setShip(new Ship())
-            .setPay(Pay.newBuilder()
-                .setCurrencyCode(Config.CURRENCY)
-                .setEstimatedTotalPrice(totalPrice).build())
-            .build()).build();
+    Merchant merchant = Config.getMerchant(req);
+    MaskedWalletContainer maskedWalletContainer =
+        buildContainer(merchant, Config.getDomain(req), gid, totalPrice);
 
+    boolean signed = false;
     try {
-      // Sign the JWT
-      String signedJwt = JwtGenerator.javaToJWT(
-          maskedWalletContainer, Config.getEnvironment().getMerchantSecret());
+      // Sign the JWT, or reuse the one signed for the same request
+      MaskedWalletRequest request = maskedWalletContainer.getRequest();
+      SignedTokenCache.Token token =
+          signOrReuse(maskedWalletContainer, merchant.getMerchantSecret());
+      TransactionLog.record(TransactionRegistry.Event.MASKED_WALLET,
+          request.getGoogleTransactionId(), maskedWalletContainer.getIss(),
+          totalPrice == null ? null : totalPrice.toString(), token);
       // send the JWT
-      resp.getWriter().print(signedJwt);
+      if (TokenEnvelope.isRequested(req)) {
+        TokenEnvelope.write(req, resp, token.getJwt(), maskedWalletContainer, token.getIat(),
+            token.getExp(), request.getGoogleTransactionId());
+      } else {
+        resp.getWriter().print(token.getJwt());
+      }
+      signed = true;
+      if (gid != null) {
+        // the cart may change with the masked wallet, e.g. after the spending limit was hit
+        FullWalletRequestServlet.forgetReplay(merchant, gid);
+      }
     } catch (InvalidKeyException ex) {
       logger.log(Level.SEVERE, "Invalid key exception ", ex);
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
     } catch (SignatureException ex) {
       logger.log(Level.SEVERE, "Signature exception ", ex);
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    } finally {
+      if (gid != null && !signed) {
+        TransactionStatusNotificationServlet.getRegistry().revert(
+            gid, TransactionRegistry.State.MASKED, previous);
+      }
     }
   }
 
+  /**
+   * Signs the request, or reuses the token signed for the same request, also used by
+   * {@link BatchServlet}.
+   *
+   * @param container the request, as built by {@link #buildContainer}.
+   * @param merchantSecret secret to sign with.
+   */
+  static SignedTokenCache.Token signOrReuse(MaskedWalletContainer container,
+      String merchantSecret) throws InvalidKeyException, SignatureException {
+    MaskedWalletRequest request = container.getRequest();
+    Money totalPrice = request.getPay().getEstimatedTotalPrice();
+    String key = SignedTokenCache.key(container.getIss(), request.getOrigin(),
+        request.getGoogleTransactionId(), Config.CURRENCY,
+        totalPrice == null ? null : totalPrice.toString(), request.getMerchantName(),
+        request.getClientId());
+    return tokenCache.getOrSignToken(key, container, merchantSecret);
+  }
+
+  /**
+   * Builds the MaskedWalletRequest JWT, also used by {@link BatchServlet}.
+   *
+   * @param merchant merchant the request is for.
+   * @param origin protocol://domain:port of the page.
+   * @param gid Google transaction id after the initial request, or null.
+   * @param totalPrice estimated order total, or null.
+   */
+  static MaskedWalletContainer buildContainer(Merchant merchant, String origin, String gid,
+      Money totalPrice) {
+    Date date = new Date();
+    return JwtRequests.newMaskedWalletBuilder()
+        .setTyp(JwtRequests.DEFAULT_TYPE)
+        .setIat(date.getTime() / 1000L)
+        .setExp(date.getTime() / 1000L + 3600)
+        .setTyp(JwtRequests.MASKED_WALLET_REQ_TYP)
+        .setAud(JwtRequests.DEFAULT_AUDIENCE)
+        .setIss(merchant.getMerchantId())
+        .setRequest(MaskedWalletRequest.newBuilder()
+            .setClientId(merchant.getOAuthClientId())
+            .setOrigin(origin)
+            .setMerchantName(merchant.getMerchantName())
+            .setGoogleTransactionId(gid)
+            .setShip(new Ship())
+            .setPay(Pay.newBuilder()
+                .setCurrencyCode(Config.CURRENCY)
+                .setEstimatedTotalPrice(totalPrice).build())
+            .build()).build();
+  }
 }
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.imaginary.server;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.imaginary.server.config.Config;
+import com.google.wallet.online.jwt.BaseJwt;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The JSON response of the request servlets when called with format=envelope, instead of the
+ * bare JWT:
+ *
+ * <pre>
+ * {"jwt": "...", "claims": {"iss": "...", "aud": "Google", "typ": "...", "iat": 1, "exp": 2,
+ *  "gid": "..."}, "valid": true}
+ * </pre>
+ *
+ * The claims are those the server just signed or served from its cache, so the page doesn't
+ * need /validate to read them. If the request also had a validate parameter, valid says
+ * whether that JWT, typically the wallet response that led to this request, checks out, which
+ * saves the page a separate /validate round trip.
+ */
+final class TokenEnvelope {
+
+  private TokenEnvelope() {
+  }
+
+  /**
+   * @return whether the request asked for an envelope.
+   */
+  static boolean isRequested(HttpServletRequest req) {
+    return "envelope".equals(req.getParameter("format"));
+  }
+
+  /**
+   * Writes the envelope for a signed JWT.
+   *
+   * @param req the request, for its validate parameter.
+   * @param resp the response to write to.
+   * @param jwt the signed JWT.
+   * @param container the container jwt was signed from.
+   * @param iat issued at time of jwt, in seconds.
+   * @param exp expiration time of jwt, in seconds.
+   * @param gid Google transaction id of the request, may be null.
+   */
+  static void write(HttpServletRequest req, HttpServletResponse resp, String jwt,
+      BaseJwt container, long iat, long exp, String gid) throws IOException {
+    write(req, resp, jwt, container.getIss(), container.getAud(), container.getTyp(), iat, exp,
+        gid);
+  }
+
+  /**
+   * Writes the envelope for a signed JWT whose container is no longer at hand.
+   */
+  static void write(HttpServletRequest req, HttpServletResponse resp, String jwt, String iss,
+      String aud, String typ, long iat, long exp, String gid) throws IOException {
+    JsonObject claims = new JsonObject();
+    addString(claims, "iss", iss);
+    addString(claims, "aud", aud);
+    addString(claims, "typ", typ);
+    claims.addProperty("iat", iat);
+    claims.addProperty("exp", exp);
+    addString(claims, "gid", gid);
+
+    JsonObject envelope = new JsonObject();
+    envelope.addProperty("jwt", jwt);
+    envelope.add("claims", claims);
+    String validate = req.getParameter("validate");
+    if (validate != null) {
+      envelope.add("valid", new JsonPrimitive(JwtValidatorServlet.isValid(
+          Config.getMerchant(req), validate)));
+    }
+    resp.setContentType("application/json");
+    resp.getWriter().write(envelope.toString());
+  }
+
+  private static void addString(JsonObject object, String name, String value) {
+    if (value != null) {
+      object.addProperty(name, value);
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.imaginary.server;
+
+import com.google.imaginary.server.config.Config;
+import com.google.wallet.online.jwt.util.SignedTokenCache;
+import com.google.wallet.online.jwt.util.TransactionLedger;
+import com.google.wallet.online.jwt.util.TransactionRegistry;
+import com.google.wallet.online.jwt.util.WriteBehindQueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the {@link TransactionLedger} the signing servlets record every JWT they issue in, so
+ * requests can be reconciled with the Wallet side. The ledger is off unless the ledger_dir
+ * property names a directory, and a JWT is only sent once its record is on disk.
+ *
+ * Transaction statuses are the exception: they are written behind, in batches, to the ledger
+ * or to the sink named by the status_sink property, so the status servlet answers as soon as
+ * its JWT is signed.
+ */
+public final class TransactionLog {
+
+  private static final Logger logger = Logger.getLogger(TransactionLog.class.getSimpleName());
+
+  private static final TransactionLedger ledger = open();
+
+  private static final WriteBehindQueue<TransactionLedger.Record> statusQueue = openStatusQueue();
+
+  private TransactionLog() {
+  }
+
+  /**
+   * @return the ledger, for looking up the JWTs issued per gid, or null if it is off.
+   */
+  public static TransactionLedger getLedger() {
+    return ledger;
+  }
+
+  /**
+   * @return the queue of statuses waiting for their sink, for monitoring its counts, or null if
+   *     statuses aren't recorded.
+   */
+  public static WriteBehindQueue<TransactionLedger.Record> getStatusQueue() {
+    return statusQueue;
+  }
+
+  /**
+   * Records a newly signed JWT.
+   *
+   * @param type kind of request jwt is.
+   * @param gid Google transaction id, may be null.
+   * @param iss merchant id jwt was issued by.
+   * @param total order total, may be null.
+   * @param iat issued at time of jwt, in seconds.
+   * @param jwt the signed JWT.
+   * @throws IOException if the record couldn't be written, the JWT must not be sent then.
+   */
+  static void record(TransactionRegistry.Event type, String gid, String iss, String total,
+      long iat, String jwt) throws IOException {
+    if (ledger == null) {
+      return;
+    }
+    try {
+      ledger.append(new TransactionLedger.Record(gid, type, iss, total, iat, jwt));
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Cannot record " + type + " for " + gid, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Records a token from a cache or store, unless it was recorded when first served.
+   */
+  static void record(TransactionRegistry.Event type, String gid, String iss, String total,
+      SignedTokenCache.Token token) throws IOException {
+    if (ledger != null && token.markRecorded()) {
+      record(type, gid, iss, total, token.getIat(), token.getJwt());
+    }
+  }
+
+  /**
+   * Records the JWTs of a batch, with one flush for all of them.
+   */
+  static void recordAll(List<TransactionLedger.Record> records) throws IOException {
+    if (ledger == null) {
+      return;
+    }
+    try {
+      ledger.appendAll(records);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Cannot record a batch of " + records.size(), e);
+      throw e;
+    }
+  }
+
+  /**
+   * Queues a newly signed transaction status for its sink, waiting for room if the queue is
+   * full.
+   *
+   * @param gid Google transaction id.
+   * @param iss merchant id jwt was issued by.
+   * @param iat issued at time of jwt, in seconds.
+   * @param jwt the signed JWT.
+   * @return false if the queue stayed full, the JWT must not be sent then.
+   * @throws IOException if the status can't be recorded, the JWT must not be sent then.
+   */
+  static boolean recordStatus(String gid, String iss, long iat, String jwt)
+      throws IOException, InterruptedException {
+    if (statusQueue == null) {
+      return true;
+    }
+    TransactionLedger.Record record =
+        new TransactionLedger.Record(gid, TransactionRegistry.Event.STATUS, iss, null, iat, jwt);
+    TransactionLedger.checkFields(record);
+    boolean queued = statusQueue.offer(record, Config.STATUS_QUEUE_TIMEOUT_MILLIS);
+    if (!queued) {
+      logger.log(Level.WARNING, "Status queue is full, refusing status for {0}", gid);
+    }
+    return queued;
+  }
+
+  /**
+   * Queues the transaction statuses of a batch for their sink, all of them or none.
+   *
+   * @param statuses records of the newly signed statuses.
+   * @return false if the queue didn't have room for all of them, the JWTs must not be sent
+   *     then.
+   * @throws IOException if one of them can't be recorded, none is queued then.
+   */
+  static boolean recordStatuses(List<TransactionLedger.Record> statuses)
+      throws IOException, InterruptedException {
+    if (statusQueue == null) {
+      return true;
+    }
+    for (TransactionLedger.Record status : statuses) {
+      TransactionLedger.checkFields(status);
+    }
+    boolean queued = statusQueue.offerAll(statuses, Config.STATUS_QUEUE_TIMEOUT_MILLIS);
+    if (!queued) {
+      logger.log(Level.WARNING, "Status queue is full, refusing a batch of {0} statuses",
+          statuses.size());
+    }
+    return queued;
+  }
+
+  /**
+   * Writes the statuses still queued and closes the ledger when the webapp stops, see
+   * {@link TransactionLogListener}.
+   */
+  static void close() {
+    if (statusQueue != null && !statusQueue.shutdown(Config.SHUTDOWN_TIMEOUT_MILLIS)) {
+      logger.log(Level.SEVERE, "Statuses were still queued when the webapp stopped");
+    }
+    if (ledger == null) {
+      return;
+    }
+    try {
+      ledger.close();
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Cannot flush the transaction ledger", e);
+    }
+  }
+
+  /**
+   * @return whether JWTs are recorded, so callers can skip building records.
+   */
+  static boolean isEnabled() {
+    return ledger != null;
+  }
+
+  private static TransactionLedger open() {
+    if (Config.LEDGER_DIR == null) {
+      return null;
+    }
+    try {
+      return new TransactionLedger(new File(Config.LEDGER_DIR), Config.LEDGER_SEGMENT_BYTES);
+    } catch (IOException e) {
+      // Serving nothing beats serving JWTs nobody can reconcile
+      logger.log(Level.SEVERE, "Cannot open the transaction ledger in " + Config.LEDGER_DIR, e);
+      throw new IllegalStateException("Cannot open the transaction ledger", e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static WriteBehindQueue<TransactionLedger.Record> openStatusQueue() {
+    WriteBehindQueue.Sink<TransactionLedger.Record> sink;
+    if (Config.STATUS_SINK != null) {
+      try {
+        sink = (WriteBehindQueue.Sink<TransactionLedger.Record>)
+            Class.forName(Config.STATUS_SINK).getDeclaredConstructor().newInstance();
+      } catch (Exception e) {
+        throw new IllegalStateException("Cannot create status sink " + Config.STATUS_SINK, e);
+      }
+    } else if (ledger != null) {
+      sink = new WriteBehindQueue.Sink<TransactionLedger.Record>() {
+        @Override
+        public void write(List<TransactionLedger.Record> batch) throws IOException {
+          ledger.appendAll(batch);
+        }
+      };
+    } else {
+      return null;
+    }
+    return new WriteBehindQueue<TransactionLedger.Record>("status-writer", sink,
+        Config.STATUS_QUEUE_DEPTH, Config.STATUS_BATCH_SIZE, Config.STATUS_BATCH_WINDOW_MILLIS);
+  }
+}
@@ -17,10 +17,12 @@
 package com.google.imaginary.server;
 
 import com.google.imaginary.server.config.Config;
+import com.google.imaginary.server.config.Merchant;
 import com.google.wallet.online.jwt.JwtRequests;
 import com.google.wallet.online.jwt.JwtRequests.TransactionStatusContainer;
 import com.google.wallet.online.jwt.TransactionStatusNotification;
 import com.google.wallet.online.jwt.util.JwtGenerator;
+import com.google.wallet.online.jwt.util.TransactionRegistry;
 
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -36,12 +38,26 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * This servlet generates the TransactionStatusNotification. It takes a post parameter gid.
+ * The masked and full wallet servlets record each transaction in the shared
+ * {@link TransactionRegistry}, and the status is only sent once. Transactions this instance
+ * hasn't seen are let through, their earlier requests may have gone to another instance.
  */
 public class TransactionStatusNotificationServlet extends HttpServlet {
 
   private static final Logger logger =
       Logger.getLogger(TransactionStatusNotificationServlet.class.getSimpleName());
 
+  // Where each transaction is, shared with the masked and full wallet servlets
+  private static final TransactionRegistry registry =
+      new TransactionRegistry(Config.TRANSACTION_IDLE_SECONDS * 1000L);
+
+  /**
+   * @return the transaction registry, for monitoring the number of transactions per state.
+   */
+  public static TransactionRegistry getRegistry() {
+    return registry;
+  }
+
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     getTransactionContainer(req, resp);
@@ -54,7 +70,7 @@ public class TransactionStatusNotificationServlet extends HttpServlet {
 
   /**
    * The following parameters are parsed:
-   * gid - Google Transaction Id.
+   * gid - Google Transaction Id, of a transaction with a full wallet request and no status yet.
    * @param req {@link HttpServletRequest}
    * @param resp {@link HttpServletResponse}
    */
@@ -62,34 +78,71 @@ public class TransactionStatusNotificationServlet extends HttpServlet {
       throws IOException {
     // Get Google Id
     String googleId = req.getParameter("gid");
+    if (googleId == null) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing gid");
+      return;
+    }
 
-    Date date = new Date();
+    // A transaction gets its status only once
+    TransactionRegistry.State previous;
+    try {
+      previous = registry.advance(googleId, TransactionRegistry.Event.STATUS);
+    } catch (TransactionRegistry.IllegalTransitionException e) {
+      logger.log(Level.WARNING, "Transaction status refused: {0}", e.getMessage());
+      resp.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+      return;
+    }
 
     // Generate TransactionStatusNotification JWT
-    TransactionStatusContainer container =
-        JwtRequests.newTransactionStatusBuilder()
-        .setIat(date.getTime())
-        .setExp(date.getTime() + 3600)
-        .setTyp(JwtRequests.TRANSACTION_STATUS_REQ)
-        .setAud(JwtRequests.DEFAULT_AUDIENCE)
-        .setIss(Config.getEnvironment().getMerchantId())
-        .setRequest(TransactionStatusNotification.newBuilder()
-            .setMerchantName(Config.MERCHANT_NAME)
-            .setGoogleTransactionId(googleId)
-            .setStatus(TransactionStatusNotification.Status.SUCCESS).build()).build();
+    Merchant merchant = Config.getMerchant(req);
+    TransactionStatusContainer container = buildContainer(merchant, googleId);
 
     // Respond to request
     PrintWriter pw = null;
+    boolean signed = false;
     try {
+      String jwt = JwtGenerator.javaToJWT(container, merchant.getMerchantSecret());
+      // Recorded behind the response, only a full queue holds it up
+      if (!TransactionLog.recordStatus(googleId, container.getIss(), container.getIat(), jwt)) {
+        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Status queue is full");
+        return;
+      }
       pw = resp.getWriter();
-      pw.write(JwtGenerator.javaToJWT(container, Config.getEnvironment().getMerchantSecret()));
+      pw.write(jwt);
+      signed = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
     } catch (InvalidKeyException e) {
       logger.log(Level.SEVERE, "Invalid key exception ", e);
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
     } catch (SignatureException e) {
       logger.log(Level.SEVERE, "Invalid Signature exception ", e);
       resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    } finally {
+      if (!signed) {
+        registry.revert(googleId, TransactionRegistry.State.NOTIFIED, previous);
+      }
     }
   }
 
+  /**
+   * Builds a successful TransactionStatusNotification JWT, also used by {@link BatchServlet}.
+   *
+   * @param merchant merchant the status is from.
+   * @param googleId Google transaction id.
+   */
+  static TransactionStatusContainer buildContainer(Merchant merchant, String googleId) {
+    Date date = new Date();
+    return JwtRequests.newTransactionStatusBuilder()
+        .setIat(date.getTime() / 1000L)
+        .setExp(date.getTime() / 1000L + 3600)
+        .setTyp(JwtRequests.TRANSACTION_STATUS_REQ)
+        .setAud(JwtRequests.DEFAULT_AUDIENCE)
+        .setIss(merchant.getMerchantId())
+        .setRequest(TransactionStatusNotification.newBuilder()
+            .setMerchantName(merchant.getMerchantName())
+            .setGoogleTransactionId(googleId)
+            .setStatus(TransactionStatusNotification.Status.SUCCESS).build()).build();
+  }
 }
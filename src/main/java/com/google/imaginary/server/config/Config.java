@@ -16,6 +16,21 @@
 
 package com.google.imaginary.server.config;
 
+import com.google.wallet.online.jwt.util.JwtVerifier;
+import com.google.wallet.online.jwt.util.SignerCache;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidKeyException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import javax.servlet.http.HttpServletRequest;
 
 /**
@@ -27,6 +42,7 @@ import javax.servlet.http.HttpServletRequest;
  */
 public class Config {
 
+  // The environments as they were at startup, getEnvironment() has the current one
   public static final Config SANDBOX = new Config("Sandbox",
       System.getProperty("sandbox_merchant_id"),
       System.getProperty("sandbox_merchant_auth_key"),
@@ -38,25 +54,29 @@ public class Config {
       System.getProperty("merchant_js"),
       System.getProperty("scopes"));
 
+  private static final Logger logger = Logger.getLogger(Config.class.getSimpleName());
+
   private final String id;
   private final String key;
   private final String url;
   private final String name;
   private final String scopes;
+  // As at startup, getMerchant() has the current values
   public static final String MERCHANT_NAME = System.getProperty("merchant_name");
   public static final String OAUTH_CLIENT_ID = System.getProperty("oauth_client_id");
 
-  // Set the environment that you're deploying against
-  private static Config environment =
-      System.getProperty("online_wallet_enviroment").equalsIgnoreCase("SANDBOX") ? SANDBOX
-          : PRODUCTION;
+  // Optional properties file read over the system properties, reloaded when it changes
+  public static final String CONFIG_FILE = System.getProperty("config_file");
+
+  // The environment and merchants in effect, replaced as a whole by reload()
+  private static volatile ConfigSnapshot snapshot = loadSnapshot();
 
   public static Config getEnvironment() {
-    return environment;
+    return snapshot.getEnvironment();
   }
 
   protected static void setEnvironment(Config environment) {
-    Config.environment = environment;
+    swap(snapshot.withEnvironment(environment));
   }
 
   Config(String name, String id, String key, String url, String scopes) {
@@ -67,6 +87,129 @@ public class Config {
     this.scopes = scopes;
   }
 
+  /**
+   * Returns the merchant a request is for: the one registered for its origin or host name in
+   * the merchants_file properties, else the environment's own merchant.
+   *
+   * @param req servlet request object.
+   * @return the merchant to sign and verify the request's JWTs for.
+   */
+  public static Merchant getMerchant(HttpServletRequest req) {
+    ConfigSnapshot current = snapshot;
+    if (current.getMerchants().size() == 0) {
+      return current.getDefaultMerchant();
+    }
+    Merchant found = current.getMerchants().lookup(getDomain(req), req.getServerName());
+    return found != null ? found : current.getDefaultMerchant();
+  }
+
+  /**
+   * @return the registry of merchants from the merchants_file properties, empty if unset.
+   */
+  public static MerchantRegistry getMerchants() {
+    return snapshot.getMerchants();
+  }
+
+  /**
+   * @return the configuration in effect.
+   */
+  public static ConfigSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Reads the system properties, the config_file over them and the merchants_file again, and
+   * puts them in effect. Requests already running finish with the previous configuration.
+   *
+   * @return false if the files couldn't be read or are invalid, the configuration in effect is
+   *     kept then.
+   */
+  public static boolean reload() {
+    ConfigSnapshot next;
+    try {
+      next = ConfigSnapshot.load(readProperties());
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Configuration not reloaded", e);
+      return false;
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, "Configuration not reloaded", e);
+      return false;
+    }
+    swap(next);
+    logger.info("Configuration reloaded");
+    return true;
+  }
+
+  /**
+   * Puts next in effect. The signers and verifiers of its merchants are built first, so the
+   * requests that see it don't, and those of secrets it no longer has are dropped, which also
+   * drops the tokens cached for them. Those of unchanged secrets, and their tokens, are kept.
+   * A merchant whose secret changed keeps accepting tokens of the old one for
+   * key_grace_seconds. The masked wallet cache and full wallet replay store key their tokens on
+   * the merchant's name and client id, so those cached before either changed aren't served again.
+   */
+  private static synchronized void swap(ConfigSnapshot next) {
+    ConfigSnapshot previous = snapshot;
+    Map<String, Merchant> previousById = new HashMap<String, Merchant>();
+    for (Merchant merchant : previous.getAllMerchants()) {
+      if (merchant.getMerchantSecret() != null) {
+        previousById.put(merchant.getMerchantId(), merchant);
+      }
+    }
+    Set<String> secrets = new HashSet<String>();
+    for (Merchant merchant : next.getAllMerchants()) {
+      if (merchant.getMerchantSecret() == null) {
+        continue;
+      }
+      secrets.add(merchant.getMerchantSecret());
+      try {
+        SignerCache.getSigner(merchant.getMerchantId(), merchant.getMerchantSecret());
+        // A rotated secret is still accepted for a while, tokens signed with it are in flight
+        Merchant before = previousById.get(merchant.getMerchantId());
+        if (before != null) {
+          merchant.retire(before, KEY_GRACE_SECONDS * 1000L);
+        } else {
+          merchant.getVerifier();
+        }
+      } catch (InvalidKeyException e) {
+        logger.log(Level.WARNING, "Invalid secret for merchant " + merchant, e);
+      }
+    }
+    snapshot = next;
+    for (Merchant merchant : previous.getAllMerchants()) {
+      String secret = merchant.getMerchantSecret();
+      if (secret != null && !secrets.contains(secret)) {
+        SignerCache.invalidate(secret);
+        JwtVerifier.invalidate(secret);
+      }
+    }
+  }
+
+  private static ConfigSnapshot loadSnapshot() {
+    try {
+      return ConfigSnapshot.load(readProperties());
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read the configuration", e);
+    }
+  }
+
+  /**
+   * @return the system properties, with those of the config_file over them.
+   */
+  private static Properties readProperties() throws IOException {
+    Properties properties = new Properties();
+    properties.putAll(System.getProperties());
+    if (CONFIG_FILE != null) {
+      InputStream in = new FileInputStream(CONFIG_FILE);
+      try {
+        properties.load(in);
+      } finally {
+        in.close();
+      }
+    }
+    return properties;
+  }
+
   /**
    * Helper function to get Merchant Id based on the configured environment.
    *
@@ -124,6 +267,95 @@ public class Config {
   // Request currency
   public static final String CURRENCY = "USD";
 
+  // Maximum number of verified JWTs the validator servlet keeps cached
+  public static final int VALIDATION_CACHE_SIZE =
+      Integer.getInteger("validation_cache_size", 10000);
+  // Maximum time a verified JWT stays cached, tokens are never cached past their exp claim
+  public static final long VALIDATION_CACHE_TTL_SECONDS =
+      Long.getLong("validation_cache_ttl_seconds", 3600L);
+  // Longer JWTs are rejected by the validator servlet before any verification work
+  public static final int VALIDATION_MAX_JWT_LENGTH =
+      Integer.getInteger("validation_max_jwt_length", 32768);
+  // Most jwts the validator servlet checks in one request
+  public static final int VALIDATION_MAX_BATCH = Integer.getInteger("validation_max_batch", 100);
+
+  // Limits on the cart posted to the full wallet servlet, larger carts get a 400
+  public static final int CART_MAX_ITEMS = Integer.getInteger("cart_max_items", 500);
+  public static final int CART_MAX_DESCRIPTION_LENGTH =
+      Integer.getInteger("cart_max_description_length", 1000);
+  public static final int CART_MAX_BYTES = Integer.getInteger("cart_max_bytes", 262144);
+
+  // Signed masked wallet requests kept for clients repeating the same request
+  public static final int MWR_CACHE_SIZE = Integer.getInteger("mwr_cache_size", 1000);
+  // A cached masked wallet request is re-signed once it has less than this left before exp
+  public static final long MWR_CACHE_MIN_REMAINING_SECONDS =
+      Long.getLong("mwr_cache_min_remaining_seconds", 600L);
+  // Full wallet requests kept per gid, so a retried request gets the same JWT
+  public static final int FWR_REPLAY_STORE_SIZE =
+      Integer.getInteger("fwr_replay_store_size", 10000);
+  // Transactions with no request for this long are forgotten
+  public static final long TRANSACTION_IDLE_SECONDS =
+      Long.getLong("transaction_idle_seconds", 7200L);
+
+  // Worker threads of the asynchronous JWT servlets, built with the async profile
+  public static final int ASYNC_THREADS =
+      Integer.getInteger("async_threads", Runtime.getRuntime().availableProcessors());
+  // Requests waiting for a worker, beyond this they get a 503
+  public static final int ASYNC_QUEUE_DEPTH = Integer.getInteger("async_queue_depth", 256);
+  // A request that waited longer than this for a worker gets a 503 instead of being run
+  public static final long ASYNC_QUEUE_TIMEOUT_MILLIS =
+      Long.getLong("async_queue_timeout_millis", 5000L);
+  // Time an undeploy waits for requests in flight, and for records still queued, to finish
+  public static final long SHUTDOWN_TIMEOUT_MILLIS =
+      Long.getLong("shutdown_timeout_millis", 10000L);
+
+  // Limits on the requests posted to the batch servlet, larger batches get a 413
+  public static final int BATCH_MAX_REQUESTS = Integer.getInteger("batch_max_requests", 100);
+  public static final int BATCH_MAX_BYTES = Integer.getInteger("batch_max_bytes", 1048576);
+  // Threads signing a batch, 1 signs on the request thread as App Engine frontends must
+  public static final int BATCH_PARALLELISM =
+      Integer.getInteger("batch_parallelism", Runtime.getRuntime().availableProcessors());
+
+  // Directory of the transaction ledger, left unset on App Engine which can't write files
+  public static final String LEDGER_DIR = System.getProperty("ledger_dir");
+  // Size of each ledger segment file, a record never spans two
+  public static final int LEDGER_SEGMENT_BYTES =
+      Integer.getInteger("ledger_segment_bytes", 67108864);
+
+  // Class of the sink transaction statuses are written behind to, defaults to the ledger
+  public static final String STATUS_SINK = System.getProperty("status_sink");
+  // Statuses waiting for the sink, beyond this the status servlet waits for room
+  public static final int STATUS_QUEUE_DEPTH = Integer.getInteger("status_queue_depth", 1024);
+  // Time the status servlet waits for room in the queue before answering 503
+  public static final long STATUS_QUEUE_TIMEOUT_MILLIS =
+      Long.getLong("status_queue_timeout_millis", 1000L);
+  // Statuses are written in batches of up to this many, or of what came in within the window
+  public static final int STATUS_BATCH_SIZE = Integer.getInteger("status_batch_size", 100);
+  public static final long STATUS_BATCH_WINDOW_MILLIS =
+      Long.getLong("status_batch_window_millis", 50L);
+
+  // Time tokens signed with a merchant's previous secret stay valid after it was rotated
+  public static final long KEY_GRACE_SECONDS = Long.getLong("key_grace_seconds", 3600L);
+
+  // Lifetime of the signed cookies the main servlet keeps the user's state in
+  public static final int SESSION_COOKIE_MAX_AGE_SECONDS =
+      Integer.getInteger("session_cookie_max_age_seconds", 1209600);
+
+  // How often a watcher thread checks the config_file and merchants_file for changes, it only
+  // runs when config_file is set as App Engine frontends can't start threads
+  public static final long CONFIG_POLL_SECONDS = Long.getLong("config_poll_seconds", 5L);
+
+  // Directory the page templates are read from instead of the classpath, for development
+  public static final String TEMPLATE_DIR = System.getProperty("template_dir");
+  // How often templates read from template_dir are checked for changes, 0 never checks
+  public static final long TEMPLATE_CHECK_SECONDS = Long.getLong("template_check_seconds", 2L);
+
+  static {
+    if (CONFIG_FILE != null) {
+      ConfigWatcher.start(CONFIG_POLL_SECONDS * 1000L);
+    }
+  }
+
   /**
    * Helper function to return the protocol://domain:port.
    *
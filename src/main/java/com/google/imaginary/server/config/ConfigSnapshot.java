@@ -0,0 +1,113 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.imaginary.server.config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The environment and merchants in effect, read together from one set of properties and never
+ * changed afterwards. {@link Config} swaps in a new snapshot when its properties change, so a
+ * request that read the snapshot once sees one consistent configuration.
+ */
+public final class ConfigSnapshot {
+
+  private final Config environment;
+  private final Merchant defaultMerchant;
+  private final MerchantRegistry merchants;
+  private final String merchantsFile;
+
+  private ConfigSnapshot(Config environment, Merchant defaultMerchant,
+      MerchantRegistry merchants, String merchantsFile) {
+    this.environment = environment;
+    this.defaultMerchant = defaultMerchant;
+    this.merchants = merchants;
+    this.merchantsFile = merchantsFile;
+  }
+
+  /**
+   * Reads the snapshot from the same properties appengine-web.xml sets.
+   *
+   * @throws IOException if the merchants_file can't be read.
+   * @throws IllegalArgumentException if the merchants_file is invalid.
+   */
+  static ConfigSnapshot load(Properties properties) throws IOException {
+    Config environment;
+    if ("SANDBOX".equalsIgnoreCase(properties.getProperty("online_wallet_enviroment"))) {
+      environment = new Config("Sandbox",
+          properties.getProperty("sandbox_merchant_id"),
+          properties.getProperty("sandbox_merchant_auth_key"),
+          properties.getProperty("sandbox_merchant_js"),
+          properties.getProperty("sandbox_scopes"));
+    } else {
+      environment = new Config("Production",
+          properties.getProperty("production_merchant_id"),
+          properties.getProperty("production_merchant_auth_key"),
+          properties.getProperty("merchant_js"),
+          properties.getProperty("scopes"));
+    }
+    String name = properties.getProperty("merchant_name");
+    String clientId = properties.getProperty("oauth_client_id");
+    String merchantsFile = properties.getProperty("merchants_file");
+    MerchantRegistry merchants = merchantsFile == null ? MerchantRegistry.empty()
+        : MerchantRegistry.load(merchantsFile, name, clientId);
+    return new ConfigSnapshot(environment, new Merchant(environment.getMerchantId(),
+        environment.getMerchantSecret(), name, clientId), merchants, merchantsFile);
+  }
+
+  /**
+   * @return this snapshot with another environment, keeping the merchant name and client id.
+   */
+  ConfigSnapshot withEnvironment(Config environment) {
+    return new ConfigSnapshot(environment, new Merchant(environment.getMerchantId(),
+        environment.getMerchantSecret(), defaultMerchant.getMerchantName(),
+        defaultMerchant.getOAuthClientId()), merchants, merchantsFile);
+  }
+
+  public Config getEnvironment() {
+    return environment;
+  }
+
+  /**
+   * @return the merchant of the environment's id and secret, for requests to unlisted hosts.
+   */
+  public Merchant getDefaultMerchant() {
+    return defaultMerchant;
+  }
+
+  public MerchantRegistry getMerchants() {
+    return merchants;
+  }
+
+  /**
+   * @return path of the merchants file the registry was read from, null if none.
+   */
+  public String getMerchantsFile() {
+    return merchantsFile;
+  }
+
+  /**
+   * @return the default merchant and every registered one.
+   */
+  List<Merchant> getAllMerchants() {
+    List<Merchant> all = new ArrayList<Merchant>(merchants.getMerchants());
+    all.add(0, defaultMerchant);
+    return all;
+  }
+}
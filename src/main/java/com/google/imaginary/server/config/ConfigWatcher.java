@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.imaginary.server.config;
+
+import java.io.File;
+
+/**
+ * Polls the config_file and the merchants_file in effect, and calls {@link Config#reload} when
+ * either one's modification time or length changes.
+ */
+final class ConfigWatcher implements Runnable {
+
+  private final long pollMillis;
+
+  private ConfigWatcher(long pollMillis) {
+    this.pollMillis = pollMillis;
+  }
+
+  /**
+   * Starts the watcher on a daemon thread.
+   */
+  static void start(long pollMillis) {
+    Thread thread = new Thread(new ConfigWatcher(pollMillis), "config-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void run() {
+    String stamp = stamp();
+    while (true) {
+      try {
+        Thread.sleep(pollMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      String current = stamp();
+      if (!current.equals(stamp)) {
+        // taken before reading, so a write during the reload is picked up by the next poll,
+        // as is a reload that names another merchants file
+        stamp = current;
+        Config.reload();
+      }
+    }
+  }
+
+  private static String stamp() {
+    return stamp(Config.CONFIG_FILE) + "|" + stamp(Config.getSnapshot().getMerchantsFile());
+  }
+
+  private static String stamp(String path) {
+    if (path == null) {
+      return "";
+    }
+    File file = new File(path);
+    return file.lastModified() + ":" + file.length();
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.imaginary.server.config;
+
+import com.google.wallet.online.jwt.util.JwtVerifier;
+
+import java.security.InvalidKeyException;
+
+/**
+ * One storefront served by this deployment, with the values the signing servlets put in its
+ * JWTs. Resolved per request with {@link Config#getMerchant}.
+ */
+public final class Merchant {
+
+  private final String id;
+  private final String secret;
+  private final String name;
+  private final String clientId;
+
+  // Looked up on first use. Signers stay in SignerCache, keyed by id and secret, as the token
+  // caches compare them by identity with what it returns.
+  private volatile JwtVerifier verifier;
+
+  Merchant(String id, String secret, String name, String clientId) {
+    this.id = id;
+    this.secret = secret;
+    this.name = name;
+    this.clientId = clientId;
+  }
+
+  /**
+   * @return Merchant unique Id, the issuer of its JWTs.
+   */
+  public String getMerchantId() {
+    return id;
+  }
+
+  /**
+   * @return Merchant secret key.
+   */
+  public String getMerchantSecret() {
+    return secret;
+  }
+
+  /**
+   * @return Merchant name shown in the wallet.
+   */
+  public String getMerchantName() {
+    return name;
+  }
+
+  /**
+   * @return OAuth client id of the storefront.
+   */
+  public String getOAuthClientId() {
+    return clientId;
+  }
+
+  /**
+   * @return the verifier for JWTs signed with this merchant's secret.
+   */
+  public JwtVerifier getVerifier() throws InvalidKeyException {
+    JwtVerifier result = verifier;
+    if (result == null) {
+      result = JwtVerifier.getInstance(secret);
+      verifier = result;
+    }
+    return result;
+  }
+
+  /**
+   * Keeps accepting the keys of previous, the same merchant before its secret was rotated, for
+   * graceMillis so its tokens still in flight stay valid. Called before the merchant is used.
+   */
+  void retire(Merchant previous, long graceMillis) throws InvalidKeyException {
+    verifier = getVerifier().withRetiredKeys(previous.getVerifier(), graceMillis);
+  }
+
+  @Override
+  public String toString() {
+    return id;
+  }
+}
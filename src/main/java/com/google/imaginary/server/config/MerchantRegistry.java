@@ -0,0 +1,139 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.imaginary.server.config;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The merchants served by this deployment, looked up by the origin or host name a request was
+ * made to. The lookup table is built once from a properties file:
+ *
+ * <pre>
+ * merchants=shop1,shop2
+ * shop1.id=merchant id
+ * shop1.secret=merchant secret
+ * shop1.name=Shop One
+ * shop1.client_id=OAuth client id
+ * shop1.hosts=shop1.example.com,http://localhost:8888
+ * </pre>
+ *
+ * Name and client id default to the merchant_name and oauth_client_id properties. Hosts are
+ * host names, or origins (protocol://domain:port) when one host name serves several merchants.
+ */
+public final class MerchantRegistry {
+
+  private final Map<String, Merchant> byHost;
+
+  private MerchantRegistry(Map<String, Merchant> byHost) {
+    this.byHost = byHost;
+  }
+
+  /**
+   * @return the registry with no merchants, every request goes to the default one.
+   */
+  static MerchantRegistry empty() {
+    return new MerchantRegistry(Collections.<String, Merchant>emptyMap());
+  }
+
+  /**
+   * Reads the registry from a properties file.
+   *
+   * @param path properties file, relative to the working directory which is the war on App
+   *     Engine.
+   * @throws IOException if the file can't be read.
+   * @throws IllegalArgumentException if a merchant misses its id or secret, or two merchants
+   *     claim the same host.
+   */
+  static MerchantRegistry load(String path, String defaultName, String defaultClientId)
+      throws IOException {
+    Properties properties = new Properties();
+    InputStream in = new FileInputStream(path);
+    try {
+      properties.load(in);
+    } finally {
+      in.close();
+    }
+    return parse(properties, defaultName, defaultClientId);
+  }
+
+  static MerchantRegistry parse(Properties properties, String defaultName,
+      String defaultClientId) {
+    Map<String, Merchant> byHost = new HashMap<String, Merchant>();
+    for (String key : split(properties.getProperty("merchants"))) {
+      String id = properties.getProperty(key + ".id");
+      String secret = properties.getProperty(key + ".secret");
+      if (id == null || secret == null) {
+        throw new IllegalArgumentException("Merchant " + key + " needs an id and a secret");
+      }
+      Merchant merchant = new Merchant(id, secret,
+          properties.getProperty(key + ".name", defaultName),
+          properties.getProperty(key + ".client_id", defaultClientId));
+      for (String host : split(properties.getProperty(key + ".hosts"))) {
+        Merchant previous = byHost.put(host.toLowerCase(Locale.US), merchant);
+        if (previous != null) {
+          throw new IllegalArgumentException(
+              "Host " + host + " is claimed by " + previous + " and " + id);
+        }
+      }
+    }
+    return new MerchantRegistry(byHost);
+  }
+
+  /**
+   * @param origin protocol://domain:port the request was made to, see
+   *     {@link Config#getDomain}.
+   * @param host host name the request was made to.
+   * @return the merchant of the origin, else of the host, or null if neither is registered.
+   */
+  Merchant lookup(String origin, String host) {
+    if (byHost.isEmpty()) {
+      return null;
+    }
+    Merchant merchant = byHost.get(origin.toLowerCase(Locale.US));
+    return merchant != null ? merchant : byHost.get(host.toLowerCase(Locale.US));
+  }
+
+  /**
+   * @return every registered merchant, once each.
+   */
+  public Collection<Merchant> getMerchants() {
+    return new LinkedHashSet<Merchant>(byHost.values());
+  }
+
+  /**
+   * @return number of registered hosts and origins.
+   */
+  public int size() {
+    return byHost.size();
+  }
+
+  private static String[] split(String list) {
+    if (list == null || list.trim().length() == 0) {
+      return new String[0];
+    }
+    return list.trim().split("\\s*,\\s*");
+  }
+}
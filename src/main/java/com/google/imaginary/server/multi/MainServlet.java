@@ -21,6 +21,10 @@ import com.google.imaginary.server.config.Config;
 import org.apache.velocity.VelocityContext;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -29,7 +33,9 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Servlet that renders the whole application.
+ * Servlet that renders the whole application. The page is rendered once per client id and
+ * scopes into {@link PrerenderedPage} bytes, and each request writes those with the email
+ * spliced in. GET requests whose If-None-Match lists the page's ETag get a 304 instead.
  *
  * @see <a href="http://velocity.apache.org/engine/devel/developer-guide.html">Velocity Guide</a>
  *      The selections and information generated by the user are posted to the next page the confirm
@@ -39,6 +45,17 @@ public class MainServlet extends HttpServlet {
 
   private static final Logger logger = Logger.getLogger(MainServlet.class.getSimpleName());
 
+  // Signed cookie the email is kept in, apart from the unsigned email cookie of the page scripts
+  private static final String SESSION_COOKIE = "session";
+
+  // Most pages kept, there are two per client id and scopes in use
+  private static final int MAX_PAGES = 64;
+
+  private static final AtomicLong notModified = new AtomicLong();
+
+  private final ConcurrentMap<String, PrerenderedPage> pages =
+      new ConcurrentHashMap<String, PrerenderedPage>();
+
   @Override
   public void init() throws ServletException {
     // Initialize Velocity Templates
@@ -49,13 +66,30 @@ public class MainServlet extends HttpServlet {
     }
   }
 
+  /**
+   * @return number of GET requests answered with 304 Not Modified, for monitoring.
+   */
+  public static long getNotModifiedCount() {
+    return notModified.get();
+  }
+
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-    doPost(req, resp);
+    serve(req, resp, true);
   }
 
   @Override
   public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    serve(req, resp, false);
+  }
+
+  /**
+   * Writes the page.
+   *
+   * @param conditional whether the request may be answered with 304 Not Modified.
+   */
+  private void serve(HttpServletRequest req, HttpServletResponse resp, boolean conditional)
+      throws IOException {
 
     Config environment = Config.getEnvironment();
 
@@ -64,23 +98,88 @@ public class MainServlet extends HttpServlet {
     String email = helper.getParameter("email");
     String pageURL = helper.getReq().getPathInfo().substring(1);
     if (email != null && !email.equals("")) {
-      helper.setCookie("email", email);
+      helper.setCookie(SESSION_COOKIE, email);
     } else {
-      email = helper.getCookieValue("email", "");
+      email = helper.getCookieValue(SESSION_COOKIE, "");
     }
 
-    VelocityContext context = new VelocityContext();
-    context.put("clientId", Config.OAUTH_CLIENT_ID);
-    context.put("scopes", environment.getScopes());
     if (pageURL != null && pageURL.equals("logout")) {
-      helper.getSession().invalidate();
+      helper.invalidateSession();
       helper.removeCookies();
-      context.put("email", email);
+    }
+
+    PrerenderedPage page;
+    try {
+      page = page(Config.getMerchant(req).getOAuthClientId(), environment.getScopes(),
+          email.length() > 0);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Couldn't render index.vm", e);
+      resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      return;
+    }
+    // The page depends on the session cookie, so browsers may keep it but not shared caches,
+    // and must check it is current before reusing it
+    String etag = page.getETag(email);
+    resp.setHeader("ETag", etag);
+    resp.setHeader("Cache-Control", "private, no-cache");
+    if (conditional && matches(req.getHeader("If-None-Match"), etag)) {
+      notModified.incrementAndGet();
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
     } else {
-      context.put("email", email);
+      page.write(resp, email);
     }
+    helper.end();
+  }
 
-    helper.writeTemplate("index.vm", context);
+  /**
+   * @return whether an If-None-Match header lists etag, or is *.
+   */
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      // If-None-Match compares weakly, so a weak tag matches its strong one
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
   }
 
+  /**
+   * Returns index.vm rendered for a client id and scopes, with a slot for the email. The
+   * template tests whether the email is empty, so each outcome is rendered separately.
+   */
+  private PrerenderedPage page(String clientId, String scopes, boolean hasEmail)
+      throws Exception {
+    String key = clientId + '\n' + scopes + '\n' + hasEmail;
+    PrerenderedPage page = pages.get(key);
+    if (page != null) {
+      return page;
+    }
+    VelocityContext context = new VelocityContext();
+    context.put("clientId", clientId);
+    context.put("scopes", scopes);
+    if (hasEmail) {
+      page = PrerenderedPage.render(VelocityHelper.getEngine(), "index.vm", context, "email");
+    } else {
+      context.put("email", "");
+      page = PrerenderedPage.render(VelocityHelper.getEngine(), "index.vm", context);
+    }
+    if (Config.TEMPLATE_DIR != null) {
+      // templates being edited are rendered on every request
+      return page;
+    }
+    if (pages.size() >= MAX_PAGES) {
+      // merchants or scopes were reloaded many times, start over
+      pages.clear();
+    }
+    pages.put(key, page);
+    return page;
+  }
 }
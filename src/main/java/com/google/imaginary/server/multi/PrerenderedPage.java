@@ -0,0 +1,224 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.imaginary.server.multi;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.velocity.VelocityContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A template rendered once into UTF-8 byte segments, with slots between them for the values
+ * that change on every request. The slot variables are rendered as markers, and wherever the
+ * template outputs one verbatim the page is split and the value, HTML escaped, is written in
+ * its place. A template that tests a slot variable must be rendered once per outcome of the
+ * test, see {@link MainServlet}.
+ */
+final class PrerenderedPage {
+
+  // Private use character, which no template outputs
+  private static final char MARK = '\uE000';
+  private static final byte[] MARKER_BYTES = utf8(String.valueOf(MARK));
+  // Bytes of the digest in an ETag
+  private static final int ETAG_BYTES = 12;
+
+  private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 is not available", e);
+      }
+    }
+  };
+
+  private final byte[][] segments;
+  // slots[i] is the slot written after segments[i]
+  private final int[] slots;
+  private final int staticLength;
+  // Digest of the rendered template, which changes with the template, client id and scopes
+  private final byte[] version;
+  private final String staticETag;
+
+  private PrerenderedPage(byte[][] segments, int[] slots) {
+    this.segments = segments;
+    this.slots = slots;
+    MessageDigest digest = digests.get();
+    int length = 0;
+    for (int i = 0; i < segments.length; i++) {
+      length += segments[i].length;
+      digest.update(segments[i]);
+      if (i < slots.length) {
+        digest.update(MARKER_BYTES);
+        digest.update((byte) slots[i]);
+      }
+    }
+    this.staticLength = length;
+    this.version = digest.digest();
+    this.staticETag = quote(version);
+  }
+
+  /**
+   * Renders a template with its slot variables as markers.
+   *
+   * @param engine engine to render with.
+   * @param name template name.
+   * @param context the fixed variables, the slot variables are added to it.
+   * @param slotNames the variables that change on every request.
+   */
+  static PrerenderedPage render(TemplateEngine engine, String name, VelocityContext context,
+      String... slotNames) throws Exception {
+    for (int i = 0; i < slotNames.length; i++) {
+      context.put(slotNames[i], marker(i));
+    }
+    StringWriter out = new StringWriter();
+    engine.render(name, context, out);
+    String page = out.toString();
+
+    List<byte[]> segments = new ArrayList<byte[]>();
+    List<Integer> slots = new ArrayList<Integer>();
+    int start = 0;
+    int next;
+    while ((next = page.indexOf(MARK, start)) >= 0) {
+      int end = page.indexOf(MARK, next + 1);
+      segments.add(utf8(page.substring(start, next)));
+      slots.add(Integer.parseInt(page.substring(next + 1, end)));
+      start = end + 1;
+    }
+    segments.add(utf8(page.substring(start)));
+    int[] slotArray = new int[slots.size()];
+    for (int i = 0; i < slotArray.length; i++) {
+      slotArray[i] = slots.get(i);
+    }
+    return new PrerenderedPage(segments.toArray(new byte[segments.size()][]), slotArray);
+  }
+
+  /**
+   * Writes the page as the whole response, with its length so it isn't chunked.
+   *
+   * @param resp the response.
+   * @param values value of each slot variable, in the order they were named when rendering.
+   */
+  void write(HttpServletResponse resp, String... values) throws IOException {
+    byte[][] escaped = new byte[values.length][];
+    int length = staticLength;
+    for (int slot : slots) {
+      if (escaped[slot] == null) {
+        escaped[slot] = utf8(escapeHtml(values[slot]));
+      }
+      length += escaped[slot].length;
+    }
+    resp.setContentType("text/html; charset=UTF-8");
+    resp.setContentLength(length);
+    OutputStream out = resp.getOutputStream();
+    for (int i = 0; i < slots.length; i++) {
+      out.write(segments[i]);
+      out.write(escaped[slots[i]]);
+    }
+    out.write(segments[slots.length]);
+  }
+
+  /**
+   * Strong validator of the page written with values, computed without writing it. Pages
+   * without slots share one ETag, whatever the values.
+   *
+   * @param values value of each slot variable, as for {@link #write}.
+   * @return the quoted ETag.
+   */
+  String getETag(String... values) {
+    if (slots.length == 0) {
+      return staticETag;
+    }
+    MessageDigest digest = digests.get();
+    digest.update(version);
+    for (String value : values) {
+      // length prefixed, so no value can run into the next one
+      byte[] bytes = utf8(value == null ? "" : value);
+      digest.update((byte) (bytes.length >>> 24));
+      digest.update((byte) (bytes.length >>> 16));
+      digest.update((byte) (bytes.length >>> 8));
+      digest.update((byte) bytes.length);
+      digest.update(bytes);
+    }
+    return quote(digest.digest());
+  }
+
+  private static String quote(byte[] digest) {
+    return '"' + new String(Base64.encodeBase64URLSafe(Arrays.copyOf(digest, ETAG_BYTES)))
+        + '"';
+  }
+
+  private static String marker(int slot) {
+    return MARK + Integer.toString(slot) + MARK;
+  }
+
+  private static String escapeHtml(String value) {
+    if (value == null) {
+      return "";
+    }
+    StringBuilder escaped = null;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      String replacement;
+      switch (c) {
+        case '&':
+          replacement = "&amp;";
+          break;
+        case '<':
+          replacement = "&lt;";
+          break;
+        case '>':
+          replacement = "&gt;";
+          break;
+        case '"':
+          replacement = "&quot;";
+          break;
+        case '\'':
+          replacement = "&#39;";
+          break;
+        default:
+          if (escaped != null) {
+            escaped.append(c);
+          }
+          continue;
+      }
+      if (escaped == null) {
+        escaped = new StringBuilder(value.length() + 16).append(value, 0, i);
+      }
+      escaped.append(replacement);
+    }
+    return escaped == null ? value : escaped.toString();
+  }
+
+  private static byte[] utf8(String value) {
+    try {
+      return value.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
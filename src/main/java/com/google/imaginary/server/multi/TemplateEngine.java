@@ -0,0 +1,153 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.imaginary.server.multi;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.context.Context;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Velocity engine that parses its templates once and renders the parsed templates, instead of
+ * looking each one up again through {@code Velocity.mergeTemplate}. A page is rendered into a
+ * buffer kept by the thread and then written out in one go, so a template that fails half way
+ * writes nothing.
+ *
+ * Templates come from the classpath, where they can't change. For development they can be
+ * read from a directory instead, and are then checked for changes at most once per interval.
+ */
+public class TemplateEngine {
+
+  // Buffers that grew past this are dropped rather than kept by the thread
+  private static final int MAX_BUFFER_CHARS = 1 << 16;
+
+  private static final ThreadLocal<CharArrayWriter> buffers = new ThreadLocal<CharArrayWriter>() {
+    @Override
+    protected CharArrayWriter initialValue() {
+      return new CharArrayWriter(8192);
+    }
+  };
+
+  private final VelocityEngine engine;
+  private final boolean checked;
+  private final ConcurrentMap<String, Template> templates =
+      new ConcurrentHashMap<String, Template>();
+
+  private final AtomicLong renders = new AtomicLong();
+
+  /**
+   * Creates an engine reading templates from the classpath.
+   *
+   * @param names templates to parse now, others are parsed on first use.
+   */
+  public TemplateEngine(String... names) throws Exception {
+    this(null, 0, names);
+  }
+
+  /**
+   * Creates an engine.
+   *
+   * @param directory directory to read templates from, null for the classpath.
+   * @param checkSeconds how often a template read from directory is checked for changes, 0 or
+   *     less never checks.
+   * @param names templates to parse now, others are parsed on first use.
+   */
+  public TemplateEngine(String directory, long checkSeconds, String... names) throws Exception {
+    Properties properties = new Properties();
+    if (directory == null) {
+      properties.put("resource.loader", "class");
+      properties.put("class.resource.loader.description", "Velocity Classpath Resource Loader");
+      properties.put("class.resource.loader.class",
+          "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
+      properties.put("class.resource.loader.cache", "true");
+    } else {
+      properties.put("resource.loader", "file");
+      properties.put("file.resource.loader.path", directory);
+      properties.put("file.resource.loader.cache", "true");
+      properties.put("file.resource.loader.modificationCheckInterval",
+          String.valueOf(Math.max(0, checkSeconds)));
+    }
+    // So we don't write to velocity.log
+    properties.put(
+        "runtime.log.logsystem.class", "org.apache.velocity.runtime.log.NullLogChute");
+    this.engine = new VelocityEngine();
+    engine.init(properties);
+    this.checked = directory != null && checkSeconds > 0;
+    for (String name : names) {
+      template(name);
+    }
+  }
+
+  /**
+   * Renders a template.
+   *
+   * @param name template name.
+   * @param context the context variables which the template requires.
+   * @param out where the page is written, only once it rendered completely.
+   * @throws IOException if out failed.
+   * @throws Exception if the template couldn't be found, parsed or rendered.
+   */
+  public void render(String name, Context context, Writer out) throws Exception {
+    CharArrayWriter buffer = buffers.get();
+    buffer.reset();
+    try {
+      template(name).merge(context, buffer);
+      buffer.writeTo(out);
+      renders.incrementAndGet();
+    } finally {
+      if (buffer.size() > MAX_BUFFER_CHARS) {
+        buffers.remove();
+      }
+    }
+  }
+
+  /**
+   * @return number of pages rendered, for monitoring.
+   */
+  public long getRenderCount() {
+    return renders.get();
+  }
+
+  /**
+   * @return number of templates parsed and kept.
+   */
+  public int size() {
+    return templates.size();
+  }
+
+  private Template template(String name) throws Exception {
+    if (checked) {
+      // the engine's own cache checks the file once per interval
+      return engine.getTemplate(name, "UTF-8");
+    }
+    Template template = templates.get(name);
+    if (template == null) {
+      template = engine.getTemplate(name, "UTF-8");
+      Template previous = templates.putIfAbsent(name, template);
+      if (previous != null) {
+        template = previous;
+      }
+    }
+    return template;
+  }
+}
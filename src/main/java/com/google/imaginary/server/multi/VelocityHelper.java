@@ -17,14 +17,18 @@
 package com.google.imaginary.server.multi;
 
 import com.google.imaginary.server.config.Config;
+import com.google.imaginary.server.config.Merchant;
+import com.google.wallet.online.jwt.util.PooledHmacSigner;
+import com.google.wallet.online.jwt.util.SignedCookies;
+import com.google.wallet.online.jwt.util.SignerCache;
 
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.Velocity;
 
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
-import java.util.Properties;
+import java.security.InvalidKeyException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -38,27 +42,46 @@ import javax.servlet.http.HttpSession;
  *      This class handles the setup and tear down events which are common between all Servlets.
  */
 public class VelocityHelper implements Serializable {
-  private final PrintWriter printWriter;
+  private PrintWriter printWriter;
   private final Config environment;
-  public HttpSession session;
+  private boolean sessionCreated;
   private final HttpServletRequest req;
   private final HttpServletResponse resp;
 
+  private static TemplateEngine engine;
+
+  private static final AtomicLong sessionsCreated = new AtomicLong();
+  private static final AtomicLong sessionsAvoided = new AtomicLong();
+
+  /**
+   * Initialize the velocity configuration, parsing the templates up front.
+   */
+  static synchronized void init() throws Exception {
+    if (engine == null) {
+      engine = new TemplateEngine(Config.TEMPLATE_DIR, Config.TEMPLATE_CHECK_SECONDS, "index.vm");
+    }
+  }
+
+  /**
+   * @return the engine templates are rendered with, for monitoring.
+   */
+  public static TemplateEngine getEngine() {
+    return engine;
+  }
+
   /**
-   * Initialize the velocity configuration.
+   * @return number of sessions created to store state, for monitoring.
    */
-  static void init() throws Exception {
-    // Initialize Velocity Templates
-    Properties velocityProperties = new Properties();
-    velocityProperties.put("resource.loader", "class");
-    velocityProperties.put(
-        "class.resource.loader.description", "Velocity Classpath Resource Loader");
-    velocityProperties.put("class.resource.loader.class",
-        "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
-    // So we don't write to velocity.log
-    velocityProperties.put(
-        "runtime.log.logsystem.class", "org.apache.velocity.runtime.log.NullLogChute");
-    Velocity.init(velocityProperties);
+  public static long getSessionsCreatedCount() {
+    return sessionsCreated.get();
+  }
+
+  /**
+   * @return number of requests served without the session they used to be given, for
+   *     monitoring.
+   */
+  public static long getSessionsAvoidedCount() {
+    return sessionsAvoided.get();
   }
 
   /**
@@ -72,11 +95,8 @@ public class VelocityHelper implements Serializable {
   public VelocityHelper(HttpServletRequest req, HttpServletResponse resp, Config environment)
       throws IOException {
     this.environment = environment;
-    this.session = req.getSession();
     this.req = req;
     this.resp = resp;
-    // Get the response output stream PrintWriter.
-    this.printWriter = resp.getWriter();
   }
 
   /**
@@ -95,26 +115,32 @@ public class VelocityHelper implements Serializable {
       context = new VelocityContext();
     }
     try {
-      Velocity.mergeTemplate(templateName, "UTF-8", context, printWriter);
+      engine.render(templateName, context, getPrintWriter());
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
   /**
-   * Get the request parameter for the given key.
+   * Sets a cookie signed with the merchant's key, see {@link SignedCookies}, which expires after
+   * session_cookie_max_age_seconds.
    *
-   * @param key requested key
+   * @param key cookie name
+   * @param value cookie value, readable by the user
    */
   public void setCookie(String key, String value) {
-    Cookie userCookie = new Cookie(key, value);
+    int maxAge = Config.SESSION_COOKIE_MAX_AGE_SECONDS;
+    long exp = System.currentTimeMillis() / 1000L + maxAge;
+    Cookie userCookie = new Cookie(key, SignedCookies.encode(signer(), key, value, exp));
+    userCookie.setMaxAge(maxAge);
     resp.addCookie(userCookie);
   }
 
   /**
    * @param cookieName
    * @param defaultValue
-   * @return String
+   * @return the value of a cookie set with {@link #setCookie}, defaultValue if it is missing,
+   *     expired or wasn't signed by this merchant.
    */
   public String getCookieValue(String cookieName, String defaultValue) {
     Cookie[] cookies = req.getCookies();
@@ -122,13 +148,24 @@ public class VelocityHelper implements Serializable {
       for (int i = 0; i < cookies.length; i++) {
         Cookie cookie = cookies[i];
         if (cookieName.equals(cookie.getName())) {
-          return (cookie.getValue());
+          String value = SignedCookies.decode(signer(), cookieName, cookie.getValue());
+          return value != null ? value : defaultValue;
         }
       }
     }
     return (defaultValue);
   }
 
+  private PooledHmacSigner signer() {
+    Merchant merchant = Config.getMerchant(req);
+    try {
+      return SignerCache.getSigner(merchant.getMerchantId(), merchant.getMerchantSecret());
+    } catch (InvalidKeyException e) {
+      throw new IllegalStateException("Invalid secret for merchant " + merchant.getMerchantId(),
+          e);
+    }
+  }
+
   /**
    * Removes all the browser cookies.
    */
@@ -150,17 +187,62 @@ public class VelocityHelper implements Serializable {
     return req.getParameter(key);
   }
 
-  public PrintWriter getPrintWriter() {
+  /**
+   * @return the response writer, only taken on first use so the page can be written as bytes
+   *     instead.
+   */
+  public PrintWriter getPrintWriter() throws IOException {
+    if (printWriter == null) {
+      printWriter = resp.getWriter();
+    }
     return printWriter;
   }
 
   /**
-   * @return the session
+   * @return the session of the request, null if it has none. Use {@link #createSession} to
+   *     store state.
    */
   public HttpSession getSession() {
+    return req.getSession(false);
+  }
+
+  /**
+   * Creates the session if the request has none, each new session is written to the datastore
+   * and memcache on App Engine so only call this to store state, after turning
+   * sessions-enabled back on. Prefer {@link #setCookie} for state the user may read.
+   *
+   * @return the session
+   */
+  public HttpSession createSession() {
+    HttpSession session = req.getSession(false);
+    if (session == null) {
+      session = req.getSession(true);
+      sessionCreated = true;
+      sessionsCreated.incrementAndGet();
+    }
     return session;
   }
 
+  /**
+   * Invalidates the session of the request, without creating one if it has none.
+   */
+  public void invalidateSession() {
+    HttpSession session = req.getSession(false);
+    if (session != null) {
+      session.invalidate();
+    }
+  }
+
+  /**
+   * Counts the request as served without a session if it neither brought nor created one.
+   * Call once the response is written.
+   */
+  public void end() {
+    if (!sessionCreated && req.getRequestedSessionId() == null) {
+      sessionsAvoided.incrementAndGet();
+    }
+  }
+
   /**
    * @return the request
    */
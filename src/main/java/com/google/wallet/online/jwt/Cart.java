@@ -24,7 +24,7 @@ import java.util.List;
  */
 public class Cart {
 
-  private String totalPrice;
+  private Money totalPrice;
   private String currencyCode;
   private List<LineItem> lineItems;
 
@@ -38,7 +38,7 @@ public class Cart {
     this.lineItems = builder.lineItems;
   }
 
-  public String getTotalPrice() {
+  public Money getTotalPrice() {
     return totalPrice;
   }
 
@@ -50,6 +50,24 @@ public class Cart {
     return lineItems;
   }
 
+  /**
+   * Sums the total price of every line item, in the cart's currency.
+   *
+   * @return the sum, zero for a cart without items.
+   * @throws ArithmeticException if the sum overflows.
+   */
+  public Money getLineItemsTotal() {
+    Money total = Money.ofMinorUnits(0, currencyCode);
+    if (lineItems != null) {
+      for (LineItem item : lineItems) {
+        if (item != null && item.getTotalPrice() != null) {
+          total = total.plus(item.getTotalPrice());
+        }
+      }
+    }
+    return total;
+  }
+
   public static Builder newBuilder() {
     return new Builder();
   }
@@ -65,14 +83,14 @@ public class Cart {
    * A class that helps creating the Cart.
    */
   public static class Builder {
-    private String totalPrice;
+    private Money totalPrice;
     private String currencyCode;
     private List<LineItem> lineItems;
 
     private Builder() {
     }
 
-    public Builder setTotalPrice(String totalPrice) {
+    public Builder setTotalPrice(Money totalPrice) {
       this.totalPrice = totalPrice;
       return this;
     }
@@ -97,6 +115,9 @@ public class Cart {
 
     public Cart build() {
       // validate and return
+      if (currencyCode == null && totalPrice != null) {
+        currencyCode = totalPrice.getCurrencyCode();
+      }
       return new Cart(this);
     }
   }
@@ -25,8 +25,8 @@ package com.google.wallet.online.jwt;
 public class LineItem {
   private String description;
   private Integer quantity;
-  private Double unitPrice;
-  private Double totalPrice;
+  private Money unitPrice;
+  private Money totalPrice;
   private Role role;
 
   /**
@@ -55,11 +55,11 @@ public class LineItem {
     return quantity;
   }
 
-  public Double getUnitPrice() {
+  public Money getUnitPrice() {
     return unitPrice;
   }
 
-  public Double getTotalPrice() {
+  public Money getTotalPrice() {
     return totalPrice;
   }
 
@@ -86,8 +86,8 @@ public class LineItem {
   public static class Builder {
     private String description;
     private Integer quantity;
-    private Double unitPrice;
-    private Double totalPrice;
+    private Money unitPrice;
+    private Money totalPrice;
     private Role role;
 
     private Builder() {
@@ -107,12 +107,12 @@ public class LineItem {
       return this;
     }
 
-    public Builder setUnitPrice(Double unitPrice) {
+    public Builder setUnitPrice(Money unitPrice) {
       this.unitPrice = unitPrice;
       return this;
     }
 
-    public Builder setTotalPrice(Double totalPrice) {
+    public Builder setTotalPrice(Money totalPrice) {
       this.totalPrice = totalPrice;
       return this;
     }
@@ -124,7 +124,8 @@ public class LineItem {
 
     public LineItem build() {
       if (this.quantity != null && this.unitPrice != null) {
-        setTotalPrice(quantity * unitPrice);
+        // exact, in minor units of the currency
+        setTotalPrice(unitPrice.times(quantity));
       }
       return new LineItem(this);
     }
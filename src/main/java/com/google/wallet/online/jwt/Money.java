@@ -0,0 +1,298 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Currency;
+
+/**
+ * An exact amount of money, held as a whole number of the currency's minor units (cents for
+ * USD). Arithmetic is done on longs and fails rather than overflows, and amounts are formatted
+ * with exactly the currency's number of fraction digits, e.g. 1210.00.
+ */
+public final class Money implements Comparable<Money> {
+
+  private static final long[] POWERS_OF_TEN = new long[19];
+  // Most fraction digits the slow path rescales, more would make setScale divide by a huge power
+  // of ten. Values smaller than a minor unit are handled before the limit applies
+  private static final int MAX_SCALE = 64;
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private final long amount;
+  private final String currencyCode;
+  private final int fractionDigits;
+
+  private Money(long amount, String currencyCode, int fractionDigits) {
+    this.amount = amount;
+    this.currencyCode = currencyCode;
+    this.fractionDigits = fractionDigits;
+  }
+
+  /**
+   * @param amount amount in minor units of the currency.
+   * @param currencyCode ISO 4217 currency code.
+   * @throws IllegalArgumentException if the currency code is unknown.
+   */
+  public static Money ofMinorUnits(long amount, String currencyCode) {
+    return new Money(amount, currencyCode, fractionDigits(currencyCode));
+  }
+
+  /**
+   * Parses a decimal amount such as "1210.00" or "9.5". The value has to be representable
+   * exactly in the currency's minor units.
+   *
+   * @throws NumberFormatException if the amount is null, malformed, too precise or too large.
+   * @throws IllegalArgumentException if the currency code is unknown.
+   */
+  public static Money parse(String decimal, String currencyCode) {
+    int digits = fractionDigits(currencyCode);
+    if (decimal == null) {
+      throw new NumberFormatException("null");
+    }
+    long amount = parsePlain(decimal, digits);
+    if (amount == Long.MIN_VALUE) {
+      // Exponents, a leading '+', more than 18 digits and the like go the slow way
+      amount = toMinorUnits(decimal, digits, null);
+    }
+    return new Money(amount, currencyCode, digits);
+  }
+
+  /**
+   * Parses a decimal amount, rounding half up to the currency's minor units. Meant for
+   * estimates computed in floating point by the page.
+   *
+   * @throws NumberFormatException if the amount is null, malformed or too large.
+   * @throws IllegalArgumentException if the currency code is unknown.
+   */
+  public static Money parseRounded(String decimal, String currencyCode) {
+    int digits = fractionDigits(currencyCode);
+    if (decimal == null) {
+      throw new NumberFormatException("null");
+    }
+    return new Money(toMinorUnits(decimal, digits, RoundingMode.HALF_UP), currencyCode, digits);
+  }
+
+  /**
+   * @return the amount in minor units of the currency.
+   */
+  public long getMinorUnits() {
+    return amount;
+  }
+
+  public String getCurrencyCode() {
+    return currencyCode;
+  }
+
+  /**
+   * @return number of digits after the decimal point for this currency.
+   */
+  public int getFractionDigits() {
+    return fractionDigits;
+  }
+
+  /**
+   * @throws IllegalArgumentException if the currencies differ.
+   * @throws ArithmeticException if the sum overflows.
+   */
+  public Money plus(Money other) {
+    checkSameCurrency(other);
+    long sum = amount + other.amount;
+    // Overflow iff both operands have the same sign and the sum's sign differs
+    if (((amount ^ sum) & (other.amount ^ sum)) < 0) {
+      throw new ArithmeticException("Money overflow");
+    }
+    return new Money(sum, currencyCode, fractionDigits);
+  }
+
+  /**
+   * @throws ArithmeticException if the product overflows.
+   */
+  public Money times(int quantity) {
+    long product = amount * quantity;
+    if (quantity != 0 && (product / quantity != amount
+        || (amount == Long.MIN_VALUE && quantity == -1))) {
+      throw new ArithmeticException("Money overflow");
+    }
+    return new Money(product, currencyCode, fractionDigits);
+  }
+
+  /**
+   * @return the amount as a decimal with the currency's number of fraction digits.
+   */
+  public BigDecimal toBigDecimal() {
+    return BigDecimal.valueOf(amount, fractionDigits);
+  }
+
+  /**
+   * Appends the amount as a decimal, e.g. 1210.00, without creating intermediate strings.
+   *
+   * @return the builder, for chaining.
+   */
+  public StringBuilder appendTo(StringBuilder sb) {
+    long units = amount;
+    if (fractionDigits == 0) {
+      return sb.append(units);
+    }
+    if (units < 0) {
+      sb.append('-');
+    }
+    long scale = POWERS_OF_TEN[fractionDigits];
+    // Negate the parts separately so Long.MIN_VALUE doesn't overflow
+    long whole = Math.abs(units / scale);
+    long fraction = Math.abs(units % scale);
+    sb.append(whole).append('.');
+    for (int i = fractionDigits - 1; i >= 0; i--) {
+      sb.append((char) ('0' + (fraction / POWERS_OF_TEN[i]) % 10));
+    }
+    return sb;
+  }
+
+  public int compareTo(Money other) {
+    checkSameCurrency(other);
+    return amount < other.amount ? -1 : (amount == other.amount ? 0 : 1);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof Money)) {
+      return false;
+    }
+    Money other = (Money) o;
+    return amount == other.amount && currencyCode.equals(other.currencyCode);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * currencyCode.hashCode() + (int) (amount ^ (amount >>> 32));
+  }
+
+  /**
+   * @return the amount as a decimal, without the currency.
+   */
+  @Override
+  public String toString() {
+    return appendTo(new StringBuilder(24)).toString();
+  }
+
+  private void checkSameCurrency(Money other) {
+    if (!currencyCode.equals(other.currencyCode)) {
+      throw new IllegalArgumentException(
+          "Currency mismatch: " + currencyCode + " and " + other.currencyCode);
+    }
+  }
+
+  private static int fractionDigits(String currencyCode) {
+    int digits = Currency.getInstance(currencyCode).getDefaultFractionDigits();
+    if (digits < 0) {
+      throw new IllegalArgumentException(currencyCode + " has no minor unit");
+    }
+    return digits;
+  }
+
+  /**
+   * Parses any decimal BigDecimal accepts. The magnitude and scale are checked before the value
+   * is rescaled, as an exponent like 1e10000000 would otherwise take seconds to rescale.
+   *
+   * @param rounding how to round extra fraction digits, null if they must be zeros.
+   */
+  private static long toMinorUnits(String decimal, int digits, RoundingMode rounding) {
+    BigDecimal value;
+    try {
+      value = new BigDecimal(decimal.trim());
+    } catch (NumberFormatException e) {
+      throw new NumberFormatException("Not a number: " + decimal);
+    }
+    if (value.signum() == 0) {
+      return 0;
+    }
+    // value < 10^integerDigits, so more than 18 can't fit a long of minor units
+    long integerDigits = (long) value.precision() - value.scale();
+    if (integerDigits > 18) {
+      throw new NumberFormatException("Not an exact amount in range: " + decimal);
+    }
+    // value < 10^-(digits + 1), less than half a minor unit
+    if (integerDigits <= -(digits + 1)) {
+      if (rounding == null) {
+        throw new NumberFormatException("Not an exact amount in range: " + decimal);
+      }
+      return 0;
+    }
+    if (value.scale() > MAX_SCALE) {
+      throw new NumberFormatException("Too many fraction digits: " + decimal);
+    }
+    try {
+      value = rounding == null ? value.setScale(digits) : value.setScale(digits, rounding);
+      return value.movePointRight(digits).longValueExact();
+    } catch (ArithmeticException e) {
+      throw new NumberFormatException("Not an exact amount in range: " + decimal);
+    }
+  }
+
+  /**
+   * Parses [-]digits[.digits] with at most 18 digits, padding or checking the fraction.
+   *
+   * @return the amount in minor units, or Long.MIN_VALUE if the input needs the slow path.
+   */
+  private static long parsePlain(String decimal, int digits) {
+    int length = decimal.length();
+    int i = 0;
+    boolean negative = length > 0 && decimal.charAt(0) == '-';
+    if (negative) {
+      i++;
+    }
+    long value = 0;
+    int significant = 0;
+    int fraction = -1;
+    int start = i;
+    for (; i < length; i++) {
+      char c = decimal.charAt(i);
+      if (c == '.' && fraction < 0) {
+        fraction = 0;
+        continue;
+      }
+      if (c < '0' || c > '9') {
+        return Long.MIN_VALUE;
+      }
+      if (fraction >= 0 && ++fraction > digits) {
+        if (c != '0') {
+          throw new NumberFormatException("Too many fraction digits: " + decimal);
+        }
+        continue;
+      }
+      if (++significant > 18) {
+        return Long.MIN_VALUE;
+      }
+      value = value * 10 + (c - '0');
+    }
+    // no digits at all, or a lone '.'
+    if (i - start - (fraction < 0 ? 0 : 1) == 0) {
+      throw new NumberFormatException("Not a number: " + decimal);
+    }
+    for (int padded = Math.max(fraction, 0); padded < digits; padded++) {
+      if (++significant > 18) {
+        return Long.MIN_VALUE;
+      }
+      value *= 10;
+    }
+    return negative ? -value : value;
+  }
+}
@@ -21,7 +21,7 @@ package com.google.wallet.online.jwt;
  */
 public class Pay {
 
-  private String estimatedTotalPrice;
+  private Money estimatedTotalPrice;
   private String currencyCode;
 
   public Pay() {
@@ -34,7 +34,7 @@ public class Pay {
     this.currencyCode = builder.currencyCode;
   }
 
-  public String getEstimatedTotalPrice() {
+  public Money getEstimatedTotalPrice() {
     return estimatedTotalPrice;
   }
 
@@ -54,13 +54,13 @@ public class Pay {
    * Helper class for creating a Pay object.
    */
   public static class Builder {
-    private String estimatedTotalPrice;
+    private Money estimatedTotalPrice;
     private String currencyCode;
 
     private Builder() {
     }
 
-    public Builder setEstimatedTotalPrice(String estimatedTotalPrice) {
+    public Builder setEstimatedTotalPrice(Money estimatedTotalPrice) {
       this.estimatedTotalPrice = estimatedTotalPrice;
       return this;
     }
@@ -72,6 +72,9 @@ public class Pay {
 
     public Pay build() {
       // validate and return
+      if (currencyCode == null && estimatedTotalPrice != null) {
+        currencyCode = estimatedTotalPrice.getCurrencyCode();
+      }
       return new Pay(this);
     }
   }
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import com.google.wallet.online.jwt.BaseJwt;
+
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Signs batches of JWTs for {@link JwtGenerator#javaToJWTs}. A batch is cut into runs small
+ * enough to sign on one thread, the calling thread signs the first run while the executor signs
+ * the others, so a large batch spreads over the executor while a small one costs no more than
+ * signing it in a loop.
+ */
+final class BatchSigner {
+
+  // Tokens signed by one task, an HMAC signature is a few microseconds so handing off less
+  // costs more than it saves
+  private static final int TOKENS_PER_TASK = 8;
+
+  private BatchSigner() {
+  }
+
+  /**
+   * @param targets JWTs to sign.
+   * @param signers signer of each target.
+   * @param executor executor to sign on, or null to sign on the calling thread.
+   * @return signed JWTs, in the order of targets.
+   */
+  static List<String> sign(List<? extends BaseJwt> targets, PooledHmacSigner[] signers,
+      ExecutorService executor) throws SignatureException {
+    String[] jwts = new String[targets.size()];
+    if (executor == null || jwts.length <= TOKENS_PER_TASK) {
+      signRange(targets, signers, jwts, 0, jwts.length);
+      return Arrays.asList(jwts);
+    }
+
+    List<Future<?>> runs = new ArrayList<Future<?>>();
+    try {
+      for (int from = TOKENS_PER_TASK; from < jwts.length; from += TOKENS_PER_TASK) {
+        runs.add(executor.submit(new SignRun(targets, signers, jwts, from,
+            Math.min(from + TOKENS_PER_TASK, jwts.length))));
+      }
+      signRange(targets, signers, jwts, 0, TOKENS_PER_TASK);
+      for (Future<?> run : runs) {
+        run.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SignatureException("Interrupted while signing a batch");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SignatureException) {
+        throw (SignatureException) e.getCause();
+      }
+      throw new SignatureException(e.getCause());
+    } finally {
+      // no-op for the runs that completed, the others' tokens are thrown away anyway
+      for (Future<?> run : runs) {
+        run.cancel(false);
+      }
+    }
+    return Arrays.asList(jwts);
+  }
+
+  private static void signRange(List<? extends BaseJwt> targets, PooledHmacSigner[] signers,
+      String[] jwts, int from, int to) throws SignatureException {
+    for (int i = from; i < to; i++) {
+      jwts[i] = JwtGenerator.sign(targets.get(i), signers[i]);
+    }
+  }
+
+  private static final class SignRun implements Callable<Void> {
+    private final List<? extends BaseJwt> targets;
+    private final PooledHmacSigner[] signers;
+    private final String[] jwts;
+    private final int from;
+    private final int to;
+
+    SignRun(List<? extends BaseJwt> targets, PooledHmacSigner[] signers, String[] jwts,
+        int from, int to) {
+      this.targets = targets;
+      this.signers = signers;
+      this.jwts = jwts;
+      this.from = from;
+      this.to = to;
+    }
+
+    public Void call() throws SignatureException {
+      signRange(targets, signers, jwts, from, to);
+      return null;
+    }
+  }
+}
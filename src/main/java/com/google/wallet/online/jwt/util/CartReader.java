@@ -0,0 +1,391 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import com.google.wallet.online.jwt.LineItem;
+import com.google.wallet.online.jwt.Money;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded reader for the JSON array of line items posted by the page. Items are built as the
+ * input is scanned, so an oversized cart is rejected as soon as a limit is crossed rather than
+ * after it has been parsed in full. Members other than description, quantity, unitPrice,
+ * totalPrice and role are skipped, and numbers may be quoted, as Gson allows. Prices must be
+ * exact in the cart's currency, e.g. at most two decimals for USD, and bare prices and
+ * quantities can't have an exponent.
+ *
+ * Instances are immutable and may be shared between threads.
+ */
+public class CartReader {
+
+  private final String currencyCode;
+  private final int maxItems;
+  private final int maxDescriptionLength;
+  private final int maxBytes;
+
+  /**
+   * Thrown when the cart isn't a JSON array of line items or exceeds a limit.
+   */
+  public static class InvalidCartException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidCartException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * @param currencyCode currency of the cart's prices.
+   * @param maxItems largest number of line items accepted.
+   * @param maxDescriptionLength longest line item description accepted, in characters.
+   * @param maxBytes longest cart accepted, in UTF-8 bytes.
+   */
+  public CartReader(String currencyCode, int maxItems, int maxDescriptionLength, int maxBytes) {
+    this.currencyCode = currencyCode;
+    this.maxItems = maxItems;
+    this.maxDescriptionLength = maxDescriptionLength;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Reads the line items of a cart.
+   *
+   * @param json JSON array of line items.
+   * @return a modifiable list of the items, in order.
+   * @throws InvalidCartException if the cart is missing, malformed or over a limit.
+   */
+  public List<LineItem> read(String json) throws InvalidCartException {
+    if (json == null) {
+      throw new InvalidCartException("Missing cart");
+    }
+    // Every char is at least one UTF-8 byte, only count exactly when it could matter
+    if (json.length() > maxBytes
+        || (json.length() * 3L > maxBytes && utf8Length(json) > maxBytes)) {
+      throw new InvalidCartException("Cart is longer than " + maxBytes + " bytes");
+    }
+    return new Scanner(json).readCart();
+  }
+
+  private static long utf8Length(String s) {
+    long length = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Single use cursor over the input.
+   */
+  private class Scanner {
+    private final String json;
+    private int pos;
+
+    Scanner(String json) {
+      this.json = json;
+    }
+
+    List<LineItem> readCart() throws InvalidCartException {
+      List<LineItem> items = new ArrayList<LineItem>();
+      expect('[');
+      if (peek() == ']') {
+        pos++;
+      } else {
+        while (true) {
+          if (items.size() == maxItems) {
+            throw new InvalidCartException("Cart has more than " + maxItems + " items");
+          }
+          items.add(readLineItem());
+          char c = next();
+          if (c == ']') {
+            break;
+          }
+          if (c != ',') {
+            throw syntaxError("',' or ']'");
+          }
+        }
+      }
+      if (peek() != 0) {
+        throw syntaxError("end of input");
+      }
+      return items;
+    }
+
+    private LineItem readLineItem() throws InvalidCartException {
+      LineItem.Builder item = LineItem.newBuilder();
+      expect('{');
+      if (peek() == '}') {
+        pos++;
+        return build(item);
+      }
+      while (true) {
+        String name = readString(Integer.MAX_VALUE);
+        expect(':');
+        if (peekLiteral("null")) {
+          // Gson leaves the member unset
+        } else if (name.equals("description")) {
+          item.setDescription(readString(maxDescriptionLength));
+        } else if (name.equals("quantity")) {
+          item.setQuantity(readInteger());
+        } else if (name.equals("unitPrice")) {
+          item.setUnitPrice(readMoney());
+        } else if (name.equals("totalPrice")) {
+          item.setTotalPrice(readMoney());
+        } else if (name.equals("role")) {
+          item.setRole(readRole());
+        } else {
+          skipValue();
+        }
+        char c = next();
+        if (c == '}') {
+          return build(item);
+        }
+        if (c != ',') {
+          throw syntaxError("',' or '}'");
+        }
+      }
+    }
+
+    private LineItem build(LineItem.Builder item) throws InvalidCartException {
+      try {
+        return item.build();
+      } catch (ArithmeticException e) {
+        throw new InvalidCartException("Line item total is out of range");
+      }
+    }
+
+    private Integer readInteger() throws InvalidCartException {
+      String number = readNumber(false);
+      try {
+        return Integer.valueOf(number);
+      } catch (NumberFormatException e) {
+        throw new InvalidCartException("Invalid quantity: " + number);
+      }
+    }
+
+    private Money readMoney() throws InvalidCartException {
+      String number = readNumber(false);
+      try {
+        return Money.parse(number, currencyCode);
+      } catch (NumberFormatException e) {
+        throw new InvalidCartException("Invalid price: " + number);
+      }
+    }
+
+    private LineItem.Role readRole() throws InvalidCartException {
+      String role = readString(Integer.MAX_VALUE);
+      try {
+        return LineItem.Role.valueOf(role);
+      } catch (IllegalArgumentException e) {
+        throw new InvalidCartException("Invalid role: " + role);
+      }
+    }
+
+    /**
+     * Reads a bare or quoted number, leaving its validation to the caller.
+     *
+     * @param exponent whether a bare number may have an exponent, only for skipped values.
+     */
+    private String readNumber(boolean exponent) throws InvalidCartException {
+      if (peek() == '"') {
+        return readString(Integer.MAX_VALUE).trim();
+      }
+      int start = pos;
+      while (pos < json.length() && (isNumberChar(json.charAt(pos))
+          || (exponent && isExponentChar(json.charAt(pos))))) {
+        pos++;
+      }
+      if (pos == start) {
+        throw syntaxError("a number");
+      }
+      return json.substring(start, pos);
+    }
+
+    private String readString(int maxLength) throws InvalidCartException {
+      expect('"');
+      StringBuilder value = null;
+      int start = pos;
+      while (pos < json.length()) {
+        char c = json.charAt(pos);
+        if (c == '"') {
+          String result = value == null
+              ? json.substring(start, pos) : value.append(json, start, pos).toString();
+          pos++;
+          if (result.length() > maxLength) {
+            throw new InvalidCartException("Description is longer than " + maxLength);
+          }
+          return result;
+        }
+        if (c == '\\') {
+          if (value == null) {
+            value = new StringBuilder();
+          }
+          value.append(json, start, pos);
+          value.append(readEscape());
+          start = pos;
+        } else {
+          if (c < 0x20) {
+            throw syntaxError("a string");
+          }
+          pos++;
+        }
+        if ((value == null ? 0 : value.length()) + pos - start > maxLength) {
+          throw new InvalidCartException("Description is longer than " + maxLength);
+        }
+      }
+      throw syntaxError("'\"'");
+    }
+
+    private char readEscape() throws InvalidCartException {
+      // pos is on the backslash
+      if (pos + 1 >= json.length()) {
+        throw syntaxError("an escape sequence");
+      }
+      char c = json.charAt(pos + 1);
+      pos += 2;
+      switch (c) {
+        case '"':
+        case '\\':
+        case '/':
+          return c;
+        case 'b':
+          return '\b';
+        case 'f':
+          return '\f';
+        case 'n':
+          return '\n';
+        case 'r':
+          return '\r';
+        case 't':
+          return '\t';
+        case 'u':
+          if (pos + 4 > json.length()) {
+            throw syntaxError("four hex digits");
+          }
+          try {
+            char unicode = (char) Integer.parseInt(json.substring(pos, pos + 4), 16);
+            pos += 4;
+            return unicode;
+          } catch (NumberFormatException e) {
+            throw syntaxError("four hex digits");
+          }
+        default:
+          throw syntaxError("an escape sequence");
+      }
+    }
+
+    /**
+     * Skips any JSON value. Nesting is tracked with a counter, so deep input can't overflow the
+     * stack.
+     */
+    private void skipValue() throws InvalidCartException {
+      int depth = 0;
+      do {
+        char c = peek();
+        if (c == '"') {
+          readString(Integer.MAX_VALUE);
+        } else if (c == '{' || c == '[') {
+          pos++;
+          depth++;
+        } else if (c == '}' || c == ']') {
+          if (depth == 0) {
+            throw syntaxError("a value");
+          }
+          pos++;
+          depth--;
+        } else if (c == ',' || c == ':') {
+          if (depth == 0) {
+            throw syntaxError("a value");
+          }
+          pos++;
+        } else if (peekLiteral("true") || peekLiteral("false") || peekLiteral("null")) {
+          // consumed
+        } else if (isNumberChar(c)) {
+          readNumber(true);
+        } else {
+          throw syntaxError("a value");
+        }
+      } while (depth > 0);
+    }
+
+    /**
+     * Consumes the literal if it comes next.
+     */
+    private boolean peekLiteral(String literal) {
+      peek();
+      if (json.startsWith(literal, pos)) {
+        pos += literal.length();
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Skips whitespace and returns the next char without consuming it, or 0 at the end.
+     */
+    private char peek() {
+      while (pos < json.length()) {
+        char c = json.charAt(pos);
+        if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+          return c;
+        }
+        pos++;
+      }
+      return 0;
+    }
+
+    private char next() throws InvalidCartException {
+      char c = peek();
+      if (c == 0) {
+        throw syntaxError("more input");
+      }
+      pos++;
+      return c;
+    }
+
+    private void expect(char expected) throws InvalidCartException {
+      if (next() != expected) {
+        pos--;
+        throw syntaxError("'" + expected + "'");
+      }
+    }
+
+    private boolean isNumberChar(char c) {
+      return (c >= '0' && c <= '9') || c == '-' || c == '.';
+    }
+
+    private boolean isExponentChar(char c) {
+      return c == 'e' || c == 'E' || c == '+';
+    }
+
+    private InvalidCartException syntaxError(String expected) {
+      return new InvalidCartException("Malformed cart, expected " + expected + " at " + pos);
+    }
+  }
+}
@@ -17,13 +17,16 @@
 package com.google.wallet.online.jwt.util;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 
 /**
- * Gson factory that points to a static Gson instance.
+ * Gson factory that points to a static Gson instance. The wallet model classes are converted by
+ * the hand-written adapters in {@link WalletTypeAdapters} instead of by reflection.
  *
  */
 public class GsonHelper {
-  private static final Gson gson = new Gson();
+  private static final Gson gson =
+      WalletTypeAdapters.registerAll(new GsonBuilder()).create();
 
   private GsonHelper() {
   }
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import com.google.wallet.online.jwt.BaseJwt;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded store of the JWT signed for each request id, such as a Google transaction id, with
+ * a digest of the request it was signed for. Replaying a request returns the stored token
+ * without rebuilding or re-signing it, while a different request under the same id is
+ * reported as a conflict. An entry lives until its token expires, or until the store is full
+ * and it is the least recently used, after which its id can be signed afresh.
+ *
+ * Entries are tied to the signer that produced them, like {@link SignedTokenCache}.
+ */
+public class IdempotentTokenStore {
+
+  private static final int MAX_SEGMENTS = 16;
+
+  private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 is not available", e);
+      }
+    }
+  };
+
+  private final Segment[] segments;
+  private final int mask;
+
+  private final AtomicLong replays = new AtomicLong();
+  private final AtomicLong conflicts = new AtomicLong();
+
+  /**
+   * Thrown when an id is reused for a different request.
+   */
+  public static class ConflictException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public ConflictException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * @param maxSize maximum number of stored tokens.
+   */
+  public IdempotentTokenStore(int maxSize) {
+    int count = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, maxSize)));
+    this.segments = new Segment[count];
+    this.mask = count - 1;
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment(Math.max(1, maxSize / count));
+    }
+  }
+
+  /**
+   * SHA-256 digest of request fields, any of which may be null.
+   */
+  public static byte[] digest(String... fields) {
+    MessageDigest digest = digests.get();
+    for (String field : fields) {
+      if (field == null) {
+        digest.update((byte) 0);
+        continue;
+      }
+      // length prefixed, so no field value can run into the next one
+      int length = field.length();
+      digest.update((byte) 1);
+      digest.update((byte) (length >>> 24));
+      digest.update((byte) (length >>> 16));
+      digest.update((byte) (length >>> 8));
+      digest.update((byte) length);
+      for (int i = 0; i < length; i++) {
+        char c = field.charAt(i);
+        digest.update((byte) (c >> 8));
+        digest.update((byte) c);
+      }
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Returns the token stored for a replay of the request.
+   *
+   * @param id request id.
+   * @param digest digest of the request, see {@link #digest}.
+   * @param issuer issuer the token would be signed for.
+   * @param merchantSecret secret the token would be signed with.
+   * @return the stored token, or null if none is stored for id.
+   * @throws ConflictException if id was stored for a different request.
+   */
+  public SignedTokenCache.Token replay(String id, byte[] digest, String issuer,
+      String merchantSecret) throws InvalidKeyException, ConflictException {
+    PooledHmacSigner signer = SignerCache.getSigner(issuer, merchantSecret);
+    Segment segment = segmentFor(id);
+    synchronized (segment) {
+      StoredToken entry = live(segment, id, signer);
+      if (entry == null) {
+        return null;
+      }
+      check(entry, id, digest);
+      replays.incrementAndGet();
+      return entry.token;
+    }
+  }
+
+  /**
+   * Signs target with {@link JwtGenerator#javaToJWT} and stores it for id. If a concurrent
+   * request stored the same request first, its token is returned instead.
+   *
+   * @param id request id.
+   * @param digest digest of the request target was built from.
+   * @param target container to sign.
+   * @param merchantSecret secret to sign with.
+   * @return the stored token.
+   * @throws ConflictException if id was stored for a different request.
+   */
+  public SignedTokenCache.Token sign(String id, byte[] digest, BaseJwt target,
+      String merchantSecret) throws InvalidKeyException, SignatureException, ConflictException {
+    PooledHmacSigner signer = SignerCache.getSigner(target.getIss(), merchantSecret);
+    long signedAt = System.currentTimeMillis();
+    String jwt = JwtGenerator.javaToJWT(target, merchantSecret);
+    // javaToJWT fills in iat and the default lifetime when they are missing
+    long iat = target.getIat() != null ? target.getIat() : signedAt / 1000L;
+    long exp = target.getExp() != null ? target.getExp()
+        : (signedAt + JwtGenerator.EXPIRATION_DELTA) / 1000L;
+    SignedTokenCache.Token token = new SignedTokenCache.Token(signer, jwt, iat, exp);
+
+    Segment segment = segmentFor(id);
+    synchronized (segment) {
+      StoredToken entry = live(segment, id, signer);
+      if (entry != null) {
+        check(entry, id, digest);
+        return entry.token;
+      }
+      segment.put(id, new StoredToken(digest, token));
+    }
+    return token;
+  }
+
+  /**
+   * Drops the token stored for id, so the next request under it is signed afresh, e.g. after
+   * the request it was signed for was superseded.
+   *
+   * @param id request id.
+   */
+  public void remove(String id) {
+    Segment segment = segmentFor(id);
+    synchronized (segment) {
+      segment.remove(id);
+    }
+  }
+
+  /**
+   * Drops every stored token.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * @return number of requests answered with a stored token.
+   */
+  public long getReplayCount() {
+    return replays.get();
+  }
+
+  /**
+   * @return number of requests rejected for reusing an id.
+   */
+  public long getConflictCount() {
+    return conflicts.get();
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  private Segment segmentFor(String id) {
+    int hash = id.hashCode();
+    // fold in the high bits, only the low ones pick the segment
+    return segments[(hash ^ (hash >>> 16)) & mask];
+  }
+
+  /**
+   * @return the entry for id if it is unexpired and from signer, dropping it otherwise.
+   */
+  private static StoredToken live(Segment segment, String id, PooledHmacSigner signer) {
+    StoredToken entry = segment.get(id);
+    if (entry != null && (entry.token.signer != signer
+        || entry.token.getExp() * 1000L <= System.currentTimeMillis())) {
+      segment.remove(id);
+      entry = null;
+    }
+    return entry;
+  }
+
+  private void check(StoredToken entry, String id, byte[] digest) throws ConflictException {
+    if (!MessageDigest.isEqual(entry.digest, digest)) {
+      conflicts.incrementAndGet();
+      throw new ConflictException("A different request was already signed for " + id);
+    }
+  }
+
+  /**
+   * Access ordered map that drops its least recently used entry when full.
+   */
+  private static class Segment extends LinkedHashMap<String, StoredToken> {
+    private final int maxSize;
+
+    Segment(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, StoredToken> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  private static final class StoredToken {
+    final byte[] digest;
+    final SignedTokenCache.Token token;
+
+    StoredToken(byte[] digest, SignedTokenCache.Token token) {
+      this.digest = digest;
+      this.token = token;
+    }
+  }
+}
@@ -20,21 +20,14 @@ import com.google.gson.JsonObject;
 import com.google.wallet.online.jwt.BaseJwt;
 import net.oauth.jsontoken.Clock;
 import net.oauth.jsontoken.JsonToken;
-import net.oauth.jsontoken.JsonTokenParser;
 import net.oauth.jsontoken.SystemClock;
-import net.oauth.jsontoken.crypto.HmacSHA256Signer;
-import net.oauth.jsontoken.crypto.HmacSHA256Verifier;
-import net.oauth.jsontoken.crypto.SignatureAlgorithm;
-import net.oauth.jsontoken.crypto.Verifier;
-import net.oauth.jsontoken.discovery.VerifierProvider;
-import net.oauth.jsontoken.discovery.VerifierProviders;
 
 import java.security.InvalidKeyException;
 import java.security.SignatureException;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Helper class to convert Java Objects representations to JSON Web Tokens.
@@ -44,6 +37,8 @@ public class JwtGenerator {
 
   public static final long EXPIRATION_DELTA = 60 * 60 * 1000L;
 
+  private static final Clock clock = new SystemClock();
+
   /**
    * Default Constructor.
    */
@@ -60,16 +55,55 @@ public class JwtGenerator {
   public static String javaToJWT(BaseJwt target, String merchantSecret) throws
       InvalidKeyException, SignatureException {
 
-    Clock clock = new SystemClock();
+    // Get the shared signer for this issuer and secret
+    return sign(target, SignerCache.getSigner(target.getIss(), merchantSecret));
+  }
 
-    JsonObject jsonData = GsonHelper.getGson().toJsonTree(target).getAsJsonObject();
+  /**
+   * Signs a batch of JWTs on the calling thread. See
+   * {@link #javaToJWTs(List, String, ExecutorService)}.
+   */
+  public static List<String> javaToJWTs(List<? extends BaseJwt> targets, String merchantSecret)
+      throws InvalidKeyException, SignatureException {
+    return javaToJWTs(targets, merchantSecret, null);
+  }
+
+  /**
+   * Signs a batch of JWTs, splitting the batch across the executor. Every target with the
+   * same issuer is signed with the same signer.
+   *
+   * @param targets the BaseJWT objects to convert into JWT strings.
+   * @param merchantSecret secret to sign with.
+   * @param executor executor to sign on, or null to sign on the calling thread.
+   * @return signed JWTs, in the order of targets.
+   * @throws InvalidKeyException
+   * @throws SignatureException if any of the targets could not be signed.
+   */
+  public static List<String> javaToJWTs(List<? extends BaseJwt> targets, String merchantSecret,
+      ExecutorService executor) throws InvalidKeyException, SignatureException {
+    PooledHmacSigner[] signers = new PooledHmacSigner[targets.size()];
+    for (int i = 0; i < signers.length; i++) {
+      String iss = targets.get(i).getIss();
+      boolean sameIssuer = i > 0 && (iss == null
+          ? targets.get(i - 1).getIss() == null : iss.equals(targets.get(i - 1).getIss()));
+      signers[i] = sameIssuer ? signers[i - 1] : SignerCache.getSigner(iss, merchantSecret);
+    }
+    return BatchSigner.sign(targets, signers, executor);
+  }
+
+  /**
+   * Signs target with an already looked up signer.
+   */
+  static String sign(BaseJwt target, PooledHmacSigner signer) throws SignatureException {
+    // The wallet containers are written straight to bytes, skipping the Gson tree
+    if (JwtWriter.supports(target)) {
+      return JwtWriter.sign(target, signer, clock.now().getMillis());
+    }
 
-    // Get signer for JWT
-    HmacSHA256Signer signer = new HmacSHA256Signer(target.getIss(), null,
-        merchantSecret.getBytes());
+    JsonObject jsonData = GsonHelper.getGson().toJsonTree(target).getAsJsonObject();
 
     // Create new JWT and set params
-    JsonToken token = new JsonToken(signer);
+    JsonToken token = new JsonToken(signer, clock);
 
 
     // Get the payload object to modify
@@ -116,21 +150,23 @@ public class JwtGenerator {
    */
   public static JsonToken jwtToJsonToken(String jwt, String secret)
       throws InvalidKeyException, SignatureException {
+    return jwtToJsonToken(jwt, JwtVerifier.getInstance(secret));
+  }
 
-    final Verifier hmacVerifier = new HmacSHA256Verifier(secret.getBytes());
-    VerifierProvider hmacLocator = new VerifierProvider() {
-
-      @Override
-      public List<Verifier> findVerifier(String id, String key) {
-        return Arrays.asList(hmacVerifier);
-      }
-    };
-
-    VerifierProviders locators = new VerifierProviders();
-    locators.setVerifierProvider(SignatureAlgorithm.HS256, hmacLocator);
-
-    // Ignore Audience does not mean that the Signature is ignored
-    JsonTokenParser parser = new JsonTokenParser(locators, new IgnoreAudience());
-    return parser.verifyAndDeserialize(jwt);
+  /**
+   * Converts a String Jwt to a JsonToken object with a verifier that may also accept retired
+   * keys, see {@link JwtVerifier#withRetiredKeys}.
+   * @param jwt.
+   * @param verifier verifier of the merchant's keys.
+   * @return a JsonToken.
+   * @throws SignatureException
+   */
+  public static JsonToken jwtToJsonToken(String jwt, JwtVerifier verifier)
+      throws SignatureException {
+    JwtVerifier.Result result = verifier.verify(jwt);
+    if (!result.isValid()) {
+      throw new SignatureException("JWT rejected: " + result.getFailure());
+    }
+    return result.getToken();
   }
 }
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cheap structural checks run on an untrusted JWT before any HMAC or full JSON parse, so garbage
+ * input is rejected for a fraction of the cost of a real verification. The stages run in order
+ * and the first failing one is reported and counted:
+ * LENGTH - missing, too short or longer than the configured maximum.
+ * SEGMENTS - not exactly header.payload.signature, or a signature that isn't HS256 sized.
+ * ALPHABET - a character outside the base64url alphabet.
+ * HEADER - the header doesn't declare alg HS256.
+ * CLAIMS - exp already passed, iat in the future, or either isn't a number.
+ *
+ * A token that passes still has to go through {@link JwtVerifier}.
+ */
+public class JwtPrecheck {
+
+  // base64url of {"alg":"HS256"} + '.' + base64url of {} + '.' + HS256 signature
+  private static final int MIN_LENGTH = 20 + 1 + 3 + 1 + 43;
+  // 32 byte HMAC SHA-256, unpadded base64url
+  private static final int SIGNATURE_LENGTH = 43;
+
+  private static final byte[] ALG = {'a', 'l', 'g'};
+  private static final byte[] HS256 = {'"', 'H', 'S', '2', '5', '6', '"'};
+  private static final byte[] EXP = {'e', 'x', 'p'};
+  private static final byte[] IAT = {'i', 'a', 't'};
+
+  // Value of each base64url character, -1 for characters outside the alphabet
+  private static final byte[] BASE64URL_VALUES = new byte[128];
+  static {
+    for (int i = 0; i < BASE64URL_VALUES.length; i++) {
+      BASE64URL_VALUES[i] = -1;
+    }
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+    for (int i = 0; i < alphabet.length(); i++) {
+      BASE64URL_VALUES[alphabet.charAt(i)] = (byte) i;
+    }
+  }
+
+  // Result of peeking at a numeric claim
+  private static final long ABSENT = Long.MIN_VALUE;
+  private static final long NOT_A_NUMBER = Long.MIN_VALUE + 1;
+  private static final long NOT_AN_INTEGER = Long.MIN_VALUE + 2;
+
+  /**
+   * Pre-check stages, in the order they run.
+   */
+  public enum Stage {
+    LENGTH, SEGMENTS, ALPHABET, HEADER, CLAIMS
+  }
+
+  private final int maxLength;
+  private final AtomicLong[] rejections = new AtomicLong[Stage.values().length];
+
+  /**
+   * @param maxLength longest JWT accepted.
+   */
+  public JwtPrecheck(int maxLength) {
+    this.maxLength = maxLength;
+    for (int i = 0; i < rejections.length; i++) {
+      rejections[i] = new AtomicLong();
+    }
+  }
+
+  /**
+   * Runs the checks.
+   *
+   * @param jwt untrusted JWT, may be null.
+   * @return the stage that rejected the token, or null if it may go on to verification.
+   */
+  public Stage check(String jwt) {
+    Stage rejectedBy = firstFailingStage(jwt, System.currentTimeMillis());
+    if (rejectedBy != null) {
+      rejections[rejectedBy.ordinal()].incrementAndGet();
+    }
+    return rejectedBy;
+  }
+
+  /**
+   * @return number of tokens rejected by the given stage.
+   */
+  public long getRejectionCount(Stage stage) {
+    return rejections[stage.ordinal()].get();
+  }
+
+  private Stage firstFailingStage(String jwt, long nowMillis) {
+    if (jwt == null || jwt.length() < MIN_LENGTH || jwt.length() > maxLength) {
+      return Stage.LENGTH;
+    }
+
+    int firstDot = jwt.indexOf('.');
+    int lastDot = jwt.lastIndexOf('.');
+    if (firstDot <= 0 || firstDot == lastDot || jwt.indexOf('.', firstDot + 1) != lastDot
+        || jwt.length() - lastDot - 1 != SIGNATURE_LENGTH
+        || (lastDot - firstDot - 1) % 4 == 1 || firstDot % 4 == 1) {
+      return Stage.SEGMENTS;
+    }
+
+    for (int i = 0, length = jwt.length(); i < length; i++) {
+      char c = jwt.charAt(i);
+      if (c != '.' && (c >= 128 || BASE64URL_VALUES[c] < 0)) {
+        return Stage.ALPHABET;
+      }
+    }
+
+    byte[] header = decode(jwt, 0, firstDot);
+    int alg = findTopLevelValue(header, ALG);
+    if (alg < 0 || !regionMatches(header, alg, HS256)) {
+      return Stage.HEADER;
+    }
+
+    byte[] payload = decode(jwt, firstDot + 1, lastDot);
+    long exp = peekLong(payload, EXP);
+    long iat = peekLong(payload, IAT);
+    if (exp == NOT_A_NUMBER || iat == NOT_A_NUMBER) {
+      return Stage.CLAIMS;
+    }
+    long nowSeconds = nowMillis / 1000L;
+    // Claims are in seconds, compare with the same truncation the verifier applies
+    if (exp != ABSENT && exp != NOT_AN_INTEGER && exp < nowSeconds) {
+      return Stage.CLAIMS;
+    }
+    if (iat != ABSENT && iat != NOT_AN_INTEGER && iat > nowSeconds) {
+      return Stage.CLAIMS;
+    }
+    return null;
+  }
+
+  /**
+   * Decodes jwt[from, to), which has already been checked to be unpadded base64url.
+   */
+  private static byte[] decode(String jwt, int from, int to) {
+    int length = to - from;
+    byte[] out = new byte[length * 3 / 4];
+    int pos = 0;
+    int bits = 0;
+    int count = 0;
+    for (int i = from; i < to; i++) {
+      bits = bits << 6 | BASE64URL_VALUES[jwt.charAt(i)];
+      if (++count == 4) {
+        out[pos++] = (byte) (bits >> 16);
+        out[pos++] = (byte) (bits >> 8);
+        out[pos++] = (byte) bits;
+        bits = 0;
+        count = 0;
+      }
+    }
+    if (count == 2) {
+      out[pos] = (byte) (bits >> 4);
+    } else if (count == 3) {
+      out[pos++] = (byte) (bits >> 10);
+      out[pos] = (byte) (bits >> 2);
+    }
+    return out;
+  }
+
+  /**
+   * Finds the value of a member of the outermost JSON object without parsing it.
+   *
+   * @return index of the first byte of the value, or -1 if the key isn't there.
+   */
+  private static int findTopLevelValue(byte[] json, byte[] key) {
+    int depth = 0;
+    for (int i = 0; i < json.length; i++) {
+      byte b = json[i];
+      if (b == '"') {
+        int end = skipString(json, i);
+        if (depth == 1 && end - i - 1 == key.length && regionMatches(json, i + 1, key)) {
+          int colon = skipWhitespace(json, end + 1);
+          if (colon < json.length && json[colon] == ':') {
+            return skipWhitespace(json, colon + 1);
+          }
+        }
+        i = end;
+      } else if (b == '{' || b == '[') {
+        depth++;
+      } else if (b == '}' || b == ']') {
+        depth--;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the value of a numeric top level claim, or one of the ABSENT, NOT_A_NUMBER and
+   *     NOT_AN_INTEGER markers. Fractional or very large numbers are left to the verifier.
+   */
+  private static long peekLong(byte[] json, byte[] key) {
+    int i = findTopLevelValue(json, key);
+    if (i < 0) {
+      return ABSENT;
+    }
+    boolean negative = i < json.length && json[i] == '-';
+    if (negative) {
+      i++;
+    }
+    int start = i;
+    long value = 0;
+    while (i < json.length && json[i] >= '0' && json[i] <= '9') {
+      if (i - start == 18) {
+        return NOT_AN_INTEGER;
+      }
+      value = value * 10 + (json[i++] - '0');
+    }
+    if (i == start) {
+      return NOT_A_NUMBER;
+    }
+    if (i < json.length && (json[i] == '.' || json[i] == 'e' || json[i] == 'E')) {
+      return NOT_AN_INTEGER;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * @return index of the closing quote of the string starting at start.
+   */
+  private static int skipString(byte[] json, int start) {
+    for (int i = start + 1; i < json.length; i++) {
+      if (json[i] == '\\') {
+        i++;
+      } else if (json[i] == '"') {
+        return i;
+      }
+    }
+    return json.length;
+  }
+
+  private static int skipWhitespace(byte[] json, int i) {
+    while (i < json.length
+        && (json[i] == ' ' || json[i] == '\t' || json[i] == '\n' || json[i] == '\r')) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean regionMatches(byte[] json, int offset, byte[] expected) {
+    if (offset + expected.length > json.length) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      if (json[offset + i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
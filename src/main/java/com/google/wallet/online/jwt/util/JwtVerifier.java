@@ -0,0 +1,319 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import net.oauth.jsontoken.Clock;
+import net.oauth.jsontoken.JsonToken;
+import net.oauth.jsontoken.SystemClock;
+import net.oauth.jsontoken.crypto.SignatureAlgorithm;
+
+import org.apache.commons.codec.binary.Base64;
+import org.joda.time.Instant;
+
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Long lived, thread safe HMAC SHA-256 JWT verifier. One instance is cached per merchant secret
+ * and reuses its Mac stripes, Json parser and clock across requests. {@link #verify(String)}
+ * reports failures through {@link Result} instead of exceptions.
+ *
+ * After a key rotation, {@link #withRetiredKeys} gives a verifier that also accepts tokens of
+ * the previous keys for a grace period. The kid header of a token picks its key from a map, so
+ * each token is still checked with a single HMAC. Tokens without a kid, or with a kid that
+ * isn't one of ours such as those signed by Google with the merchant secret, are checked with
+ * the current key. Such a token with a foreign kid that fails the check is reported as
+ * {@link Failure#UNKNOWN_KEY}.
+ */
+public class JwtVerifier {
+
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+  private static final String HS256 = SignatureAlgorithm.HS256.getNameForJson();
+
+  private static final ConcurrentMap<String, JwtVerifier> verifiers =
+      new ConcurrentHashMap<String, JwtVerifier>();
+
+  /**
+   * Reasons a JWT can be rejected.
+   */
+  public enum Failure {
+    MALFORMED, UNSUPPORTED_ALGORITHM, BAD_SIGNATURE, EXPIRED, ISSUED_IN_FUTURE, UNKNOWN_KEY
+  }
+
+  private final PooledHmacSigner hmac;
+  private final String keyId;
+  // Keys accepted besides the current one, by key id
+  private final Map<String, RetiredKey> retired;
+  private final JsonParser parser = new JsonParser();
+  private final Clock clock;
+
+  /**
+   * Returns the shared verifier for the secret, creating it on first use.
+   *
+   * @param secret the merchant secret.
+   * @return a thread safe verifier.
+   * @throws InvalidKeyException
+   */
+  public static JwtVerifier getInstance(String secret) throws InvalidKeyException {
+    JwtVerifier verifier = verifiers.get(secret);
+    if (verifier == null) {
+      verifier = new JwtVerifier(secret, new SystemClock());
+      JwtVerifier existing = verifiers.putIfAbsent(secret, verifier);
+      if (existing != null) {
+        verifier = existing;
+      }
+    }
+    return verifier;
+  }
+
+  /**
+   * Drops the verifier of the given secret, e.g. after the secret was rotated.
+   *
+   * @param secret the merchant secret.
+   */
+  public static void invalidate(String secret) {
+    verifiers.remove(secret);
+  }
+
+  /**
+   * Drops all cached verifiers.
+   */
+  public static void invalidateAll() {
+    verifiers.clear();
+  }
+
+  JwtVerifier(String secret, Clock clock) throws InvalidKeyException {
+    this(new PooledHmacSigner("verifier", null, secret.getBytes(SignerCache.UTF_8)),
+        SignerCache.keyId(secret), Collections.<String, RetiredKey>emptyMap(), clock);
+  }
+
+  private JwtVerifier(PooledHmacSigner hmac, String keyId, Map<String, RetiredKey> retired,
+      Clock clock) {
+    this.hmac = hmac;
+    this.keyId = keyId;
+    this.retired = retired;
+    this.clock = clock;
+  }
+
+  /**
+   * Returns a verifier for this key that also accepts the keys of previous, the verifier in use
+   * before a rotation: its current key for graceMillis from now, and its retired keys for what
+   * is left of their grace period.
+   *
+   * @param previous verifier of the keys being replaced.
+   * @param graceMillis time tokens of previous's current key stay valid for.
+   * @return this if previous has no other keys.
+   */
+  public JwtVerifier withRetiredKeys(JwtVerifier previous, long graceMillis) {
+    long now = clock.now().getMillis();
+    Map<String, RetiredKey> keys = new HashMap<String, RetiredKey>();
+    for (Map.Entry<String, RetiredKey> key : previous.retired.entrySet()) {
+      if (key.getValue().until > now && !key.getKey().equals(keyId)) {
+        keys.put(key.getKey(), key.getValue());
+      }
+    }
+    if (!previous.keyId.equals(keyId)) {
+      keys.put(previous.keyId, new RetiredKey(previous.hmac, now + graceMillis));
+    }
+    return keys.isEmpty() ? this : new JwtVerifier(hmac, keyId, keys, clock);
+  }
+
+  /**
+   * @return key id of the current key, see {@link SignerCache#keyId}.
+   */
+  public String getKeyId() {
+    return keyId;
+  }
+
+  /**
+   * Checks the signature, expiration and issued at time of the JWT.
+   *
+   * @param jwt serialized JWT, may be null.
+   * @return the parsed token or the reason it was rejected.
+   */
+  public Result verify(String jwt) {
+    if (jwt == null) {
+      return Result.MALFORMED;
+    }
+    int firstDot = jwt.indexOf('.');
+    int lastDot = jwt.lastIndexOf('.');
+    if (firstDot < 0 || firstDot == lastDot || jwt.indexOf('.', firstDot + 1) != lastDot) {
+      return Result.MALFORMED;
+    }
+
+    JsonObject header;
+    JsonObject payload;
+    try {
+      header = parseSegment(jwt.substring(0, firstDot));
+      payload = parseSegment(jwt.substring(firstDot + 1, lastDot));
+    } catch (JsonParseException e) {
+      return Result.MALFORMED;
+    } catch (IllegalStateException e) {
+      // segment was valid JSON but not an object
+      return Result.MALFORMED;
+    }
+
+    JsonElement alg = header.get(JsonToken.ALGORITHM_HEADER);
+    if (alg == null || !alg.isJsonPrimitive() || !HS256.equals(alg.getAsString())) {
+      return Result.UNSUPPORTED_ALGORITHM;
+    }
+
+    PooledHmacSigner key = hmac;
+    long keyValidUntil = Long.MAX_VALUE;
+    boolean knownKey = true;
+    JsonElement kid = header.get(JsonToken.KEY_ID_HEADER);
+    if (kid != null && !(kid.isJsonPrimitive() && keyId.equals(kid.getAsString()))) {
+      RetiredKey retiredKey = retiredKey(kid);
+      if (retiredKey != null) {
+        key = retiredKey.hmac;
+        keyValidUntil = retiredKey.until;
+      } else {
+        // not one of our kids, e.g. one Google set, so try the current key
+        knownKey = false;
+      }
+    }
+
+    byte[] signed = key.sign(jwt.substring(0, lastDot).getBytes(US_ASCII));
+    byte[] signature = Base64.decodeBase64(jwt.substring(lastDot + 1).getBytes(US_ASCII));
+    if (!constantTimeEquals(signed, signature)) {
+      return knownKey ? Result.BAD_SIGNATURE : Result.UNKNOWN_KEY;
+    }
+
+    // Same temporal checks as net.oauth.jsontoken.JsonTokenParser, claims are in seconds
+    Instant now = clock.now();
+    JsonElement exp = payload.get(JsonToken.EXPIRATION);
+    JsonElement iat = payload.get(JsonToken.ISSUED_AT);
+    if (!isNumberOrAbsent(exp) || !isNumberOrAbsent(iat)) {
+      return Result.MALFORMED;
+    }
+    if (exp != null && now.isAfter(exp.getAsLong() * 1000L)) {
+      return Result.EXPIRED;
+    }
+    if (iat != null && now.isBefore(iat.getAsLong() * 1000L)) {
+      return Result.ISSUED_IN_FUTURE;
+    }
+    return new Result(new JsonToken(payload, clock), null, keyValidUntil);
+  }
+
+  /**
+   * @return the retired key of kid, null if there is none or its grace period is over.
+   */
+  private RetiredKey retiredKey(JsonElement kid) {
+    if (retired.isEmpty() || !kid.isJsonPrimitive()) {
+      return null;
+    }
+    RetiredKey key = retired.get(kid.getAsString());
+    if (key == null || !clock.now().isBefore(key.until)) {
+      return null;
+    }
+    return key;
+  }
+
+  private JsonObject parseSegment(String segment) {
+    String json = new String(Base64.decodeBase64(segment.getBytes(US_ASCII)), SignerCache.UTF_8);
+    return parser.parse(json).getAsJsonObject();
+  }
+
+  private static boolean isNumberOrAbsent(JsonElement claim) {
+    return claim == null
+        || (claim.isJsonPrimitive() && claim.getAsJsonPrimitive().isNumber());
+  }
+
+  private static boolean constantTimeEquals(byte[] a, byte[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+    int result = 0;
+    for (int i = 0; i < a.length; i++) {
+      result |= a[i] ^ b[i];
+    }
+    return result == 0;
+  }
+
+  /**
+   * Outcome of a verification, either the parsed token or a {@link Failure}.
+   */
+  public static class Result {
+    static final Result MALFORMED = new Result(null, Failure.MALFORMED);
+    static final Result UNSUPPORTED_ALGORITHM = new Result(null, Failure.UNSUPPORTED_ALGORITHM);
+    static final Result BAD_SIGNATURE = new Result(null, Failure.BAD_SIGNATURE);
+    static final Result EXPIRED = new Result(null, Failure.EXPIRED);
+    static final Result ISSUED_IN_FUTURE = new Result(null, Failure.ISSUED_IN_FUTURE);
+    static final Result UNKNOWN_KEY = new Result(null, Failure.UNKNOWN_KEY);
+
+    private final JsonToken token;
+    private final Failure failure;
+    private final long keyValidUntil;
+
+    Result(JsonToken token, Failure failure) {
+      this(token, failure, Long.MAX_VALUE);
+    }
+
+    Result(JsonToken token, Failure failure, long keyValidUntil) {
+      this.token = token;
+      this.failure = failure;
+      this.keyValidUntil = keyValidUntil;
+    }
+
+    public boolean isValid() {
+      return failure == null;
+    }
+
+    /**
+     * @return the verified token, null if verification failed.
+     */
+    public JsonToken getToken() {
+      return token;
+    }
+
+    /**
+     * @return the reason the token was rejected, null if it is valid.
+     */
+    public Failure getFailure() {
+      return failure;
+    }
+
+    /**
+     * @return end of the grace period of the retired key the token was verified with, in
+     *     milliseconds, or Long.MAX_VALUE for the current key. The result mustn't be reused
+     *     after it.
+     */
+    public long getKeyValidUntil() {
+      return keyValidUntil;
+    }
+  }
+
+  private static final class RetiredKey {
+    final PooledHmacSigner hmac;
+    // end of the grace period, in milliseconds
+    final long until;
+
+    RetiredKey(PooledHmacSigner hmac, long until) {
+      this.hmac = hmac;
+      this.until = until;
+    }
+  }
+}
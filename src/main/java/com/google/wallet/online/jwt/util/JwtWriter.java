@@ -0,0 +1,472 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import com.google.wallet.online.jwt.BaseJwt;
+import com.google.wallet.online.jwt.Cart;
+import com.google.wallet.online.jwt.FullWalletRequest;
+import com.google.wallet.online.jwt.JwtRequests.FullWalletContainer;
+import com.google.wallet.online.jwt.JwtRequests.MaskedWalletContainer;
+import com.google.wallet.online.jwt.JwtRequests.TransactionStatusContainer;
+import com.google.wallet.online.jwt.LineItem;
+import com.google.wallet.online.jwt.MaskedWalletRequest;
+import com.google.wallet.online.jwt.Money;
+import com.google.wallet.online.jwt.Pay;
+import com.google.wallet.online.jwt.TransactionStatusNotification;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Serializes and signs the wallet JWT containers without building a Gson tree. The header and
+ * payload are written as UTF-8 straight into a per thread buffer, base64url encoded into a second
+ * buffer and signed there. The JSON matches what {@link GsonHelper}'s Gson and jsontoken produce
+ * for the same object: same field order, null fields omitted, the same HTML safe string escaping
+ * and prices with the currency's fraction digits.
+ */
+final class JwtWriter {
+
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+  private static final byte[] BASE64URL =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(US_ASCII);
+  private static final byte[] HEX = "0123456789abcdef".getBytes(US_ASCII);
+
+  private static final ThreadLocal<JwtWriter> writers = new ThreadLocal<JwtWriter>() {
+    @Override
+    protected JwtWriter initialValue() {
+      return new JwtWriter();
+    }
+  };
+
+  // Payload JSON
+  private byte[] json = new byte[1024];
+  private int jsonLength;
+  // Serialized token, header.payload.signature
+  private byte[] token = new byte[2048];
+  private int tokenLength;
+  // Whether the next member of the current object needs a leading comma
+  private boolean needsComma;
+
+  private JwtWriter() {
+  }
+
+  /**
+   * @return true if target is one of the containers this writer knows how to serialize.
+   */
+  static boolean supports(BaseJwt target) {
+    return target instanceof MaskedWalletContainer
+        || target instanceof FullWalletContainer
+        || target instanceof TransactionStatusContainer;
+  }
+
+  /**
+   * Serializes and signs target.
+   *
+   * @param target a container accepted by {@link #supports(BaseJwt)}.
+   * @param signer the signer, its issuer is written as the first claim like jsontoken does.
+   * @param nowMillis current time, used for iat and exp when the target doesn't set them.
+   * @return the signed JWT.
+   */
+  static String sign(BaseJwt target, PooledHmacSigner signer, long nowMillis) {
+    JwtWriter writer = writers.get();
+    writer.writePayload(target, signer.getIssuer(), nowMillis);
+    return writer.encodeAndSign(signer);
+  }
+
+  private void writePayload(BaseJwt target, String issuer, long nowMillis) {
+    jsonLength = 0;
+    beginObject();
+    // jsontoken adds the signer's issuer first, copying the payload then overwrites its value
+    if (issuer != null) {
+      stringMember("iss", target.getIss() != null ? target.getIss() : issuer);
+    }
+    if (target instanceof MaskedWalletContainer) {
+      MaskedWalletRequest request = ((MaskedWalletContainer) target).getRequest();
+      if (request != null) {
+        name("request");
+        writeMaskedWalletRequest(request);
+      }
+    } else if (target instanceof FullWalletContainer) {
+      FullWalletRequest request = ((FullWalletContainer) target).getRequest();
+      if (request != null) {
+        name("request");
+        writeFullWalletRequest(request);
+      }
+    } else {
+      TransactionStatusNotification request = ((TransactionStatusContainer) target).getRequest();
+      if (request != null) {
+        name("request");
+        writeTransactionStatusNotification(request);
+      }
+    }
+    if (issuer == null) {
+      stringMember("iss", target.getIss());
+    }
+    stringMember("aud", target.getAud());
+    stringMember("typ", target.getTyp());
+    numberMember("iat", target.getIat());
+    numberMember("exp", target.getExp());
+    // Defaults jsontoken adds after the payload was copied, in seconds
+    if (target.getIat() == null) {
+      numberMember("iat", nowMillis / 1000L);
+    }
+    if (target.getExp() == null) {
+      numberMember("exp", (nowMillis + JwtGenerator.EXPIRATION_DELTA) / 1000L);
+    }
+    endObject();
+  }
+
+  private void writeMaskedWalletRequest(MaskedWalletRequest request) {
+    beginObject();
+    stringMember("googleTransactionId", request.getGoogleTransactionId());
+    stringMember("merchantTransactionId", request.getMerchantTransactionId());
+    stringMember("clientId", request.getClientId());
+    stringMember("merchantName", request.getMerchantName());
+    stringMember("origin", request.getOrigin());
+    stringMember("email", request.getEmail());
+    booleanMember("phoneNumberRequired", request.getPhoneNumberRequired());
+    Pay pay = request.getPay();
+    if (pay != null) {
+      name("pay");
+      beginObject();
+      moneyMember("estimatedTotalPrice", pay.getEstimatedTotalPrice(), true);
+      stringMember("currencyCode", pay.getCurrencyCode());
+      endObject();
+    }
+    if (request.getShip() != null) {
+      name("ship");
+      beginObject();
+      endObject();
+    }
+    booleanMember("useMinimalAddresses", request.getUseMinimalAddresses());
+    endObject();
+  }
+
+  private void writeFullWalletRequest(FullWalletRequest request) {
+    beginObject();
+    stringMember("googleTransactionId", request.getGoogleTransactionId());
+    stringMember("clientId", request.getClientId());
+    stringMember("merchantName", request.getMerchantName());
+    stringMember("origin", request.getOrigin());
+    Cart cart = request.getCart();
+    if (cart != null) {
+      name("cart");
+      writeCart(cart);
+    }
+    endObject();
+  }
+
+  private void writeCart(Cart cart) {
+    beginObject();
+    moneyMember("totalPrice", cart.getTotalPrice(), true);
+    stringMember("currencyCode", cart.getCurrencyCode());
+    List<LineItem> lineItems = cart.getLineItems();
+    if (lineItems != null) {
+      name("lineItems");
+      ensureJson(1);
+      json[jsonLength++] = '[';
+      for (int i = 0, size = lineItems.size(); i < size; i++) {
+        if (i > 0) {
+          ensureJson(1);
+          json[jsonLength++] = ',';
+        }
+        LineItem item = lineItems.get(i);
+        if (item == null) {
+          writeAscii("null");
+        } else {
+          writeLineItem(item);
+        }
+      }
+      ensureJson(1);
+      json[jsonLength++] = ']';
+      needsComma = true;
+    }
+    endObject();
+  }
+
+  private void writeLineItem(LineItem item) {
+    beginObject();
+    stringMember("description", item.getDescription());
+    numberMember("quantity", item.getQuantity());
+    moneyMember("unitPrice", item.getUnitPrice(), false);
+    moneyMember("totalPrice", item.getTotalPrice(), false);
+    LineItem.Role role = item.getRole();
+    stringMember("role", role == null ? null : role.name());
+    endObject();
+  }
+
+  private void writeTransactionStatusNotification(TransactionStatusNotification request) {
+    beginObject();
+    stringMember("googleTransactionId", request.getGoogleTransactionId());
+    stringMember("merchantName", request.getMerchantName());
+    TransactionStatusNotification.Status status = request.getStatus();
+    stringMember("status", status == null ? null : status.name());
+    endObject();
+  }
+
+  private void beginObject() {
+    ensureJson(1);
+    json[jsonLength++] = '{';
+    needsComma = false;
+  }
+
+  private void endObject() {
+    ensureJson(1);
+    json[jsonLength++] = '}';
+    needsComma = true;
+  }
+
+  private void name(String name) {
+    if (needsComma) {
+      ensureJson(1);
+      json[jsonLength++] = ',';
+    }
+    writeString(name);
+    ensureJson(1);
+    json[jsonLength++] = ':';
+    needsComma = true;
+  }
+
+  private void stringMember(String name, String value) {
+    if (value != null) {
+      name(name);
+      writeString(value);
+    }
+  }
+
+  private void booleanMember(String name, Boolean value) {
+    if (value != null) {
+      name(name);
+      writeAscii(value.booleanValue() ? "true" : "false");
+    }
+  }
+
+  private void numberMember(String name, Number value) {
+    if (value != null) {
+      // only integral members are left, prices are written by moneyMember
+      name(name);
+      writeLong(value.longValue());
+    }
+  }
+
+  /**
+   * Writes an amount as a decimal with the currency's fraction digits, as a JSON number or,
+   * where the request format wants one, a JSON string.
+   */
+  private void moneyMember(String name, Money value, boolean quoted) {
+    if (value == null) {
+      return;
+    }
+    name(name);
+    int digits = value.getFractionDigits();
+    long units = value.getMinorUnits();
+    ensureJson(2);
+    if (quoted) {
+      json[jsonLength++] = '"';
+    }
+    if (digits == 0) {
+      writeLong(units);
+    } else {
+      long scale = 1;
+      for (int i = 0; i < digits; i++) {
+        scale *= 10;
+      }
+      if (units < 0) {
+        json[jsonLength++] = '-';
+      }
+      writeLong(Math.abs(units / scale));
+      long fraction = Math.abs(units % scale);
+      ensureJson(digits + 2);
+      json[jsonLength++] = '.';
+      for (long place = scale / 10; place > 0; place /= 10) {
+        json[jsonLength++] = (byte) ('0' + (fraction / place) % 10);
+      }
+    }
+    if (quoted) {
+      ensureJson(1);
+      json[jsonLength++] = '"';
+    }
+  }
+
+  private void writeAscii(String s) {
+    int length = s.length();
+    ensureJson(length);
+    for (int i = 0; i < length; i++) {
+      json[jsonLength++] = (byte) s.charAt(i);
+    }
+  }
+
+  private void writeLong(long value) {
+    if (value == Long.MIN_VALUE) {
+      writeAscii(Long.toString(value));
+      return;
+    }
+    ensureJson(20);
+    if (value < 0) {
+      json[jsonLength++] = '-';
+      value = -value;
+    }
+    int start = jsonLength;
+    do {
+      json[jsonLength++] = (byte) ('0' + (value % 10));
+      value /= 10;
+    } while (value != 0);
+    // digits were written least significant first
+    for (int i = start, j = jsonLength - 1; i < j; i++, j--) {
+      byte tmp = json[i];
+      json[i] = json[j];
+      json[j] = tmp;
+    }
+  }
+
+  /**
+   * Writes a quoted JSON string encoded as UTF-8, escaping like Gson's default HTML safe escaper.
+   */
+  private void writeString(String s) {
+    int length = s.length();
+    // worst case every char becomes a six byte \\uXXXX escape
+    ensureJson(length * 6 + 2);
+    byte[] out = json;
+    int pos = jsonLength;
+    out[pos++] = '"';
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        if (c >= 0x20 && c != '"' && c != '\\' && c != '<' && c != '>' && c != '&'
+            && c != '=' && c != '\'' && c != 0x7f) {
+          out[pos++] = (byte) c;
+          continue;
+        }
+        out[pos++] = '\\';
+        switch (c) {
+          case '\b':
+            out[pos++] = 'b';
+            break;
+          case '\t':
+            out[pos++] = 't';
+            break;
+          case '\n':
+            out[pos++] = 'n';
+            break;
+          case '\f':
+            out[pos++] = 'f';
+            break;
+          case '\r':
+            out[pos++] = 'r';
+            break;
+          case '\\':
+            out[pos++] = '\\';
+            break;
+          case '"':
+            out[pos++] = '"';
+            break;
+          default:
+            pos = writeUnicodeEscape(out, pos, c);
+        }
+      } else if (c <= 0x9f || c == 0x2028 || c == 0x2029) {
+        out[pos++] = '\\';
+        pos = writeUnicodeEscape(out, pos, c);
+      } else if (c < 0x800) {
+        out[pos++] = (byte) (0xc0 | (c >> 6));
+        out[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        out[pos++] = (byte) (0xf0 | (codePoint >> 18));
+        out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        out[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        // String.getBytes replaces unpaired surrogates
+        out[pos++] = '?';
+      } else {
+        out[pos++] = (byte) (0xe0 | (c >> 12));
+        out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        out[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    out[pos++] = '"';
+    jsonLength = pos;
+  }
+
+  private static int writeUnicodeEscape(byte[] out, int pos, char c) {
+    out[pos++] = 'u';
+    out[pos++] = HEX[(c >> 12) & 0xf];
+    out[pos++] = HEX[(c >> 8) & 0xf];
+    out[pos++] = HEX[(c >> 4) & 0xf];
+    out[pos++] = HEX[c & 0xf];
+    return pos;
+  }
+
+  private void ensureJson(int extra) {
+    if (jsonLength + extra > json.length) {
+      byte[] grown = new byte[Math.max(json.length * 2, jsonLength + extra)];
+      System.arraycopy(json, 0, grown, 0, jsonLength);
+      json = grown;
+    }
+  }
+
+  private String encodeAndSign(PooledHmacSigner signer) {
+    // header + '.' + payload + '.' + 43 byte signature
+    byte[] header = signer.getEncodedHeader();
+    int needed = header.length + 1 + base64Length(jsonLength) + 1 + 43;
+    if (token.length < needed) {
+      token = new byte[Math.max(token.length * 2, needed)];
+    }
+    System.arraycopy(header, 0, token, 0, header.length);
+    tokenLength = header.length;
+    token[tokenLength++] = '.';
+    tokenLength = encodeBase64Url(json, jsonLength, token, tokenLength);
+
+    byte[] signature = signer.sign(token, 0, tokenLength);
+    token[tokenLength++] = '.';
+    tokenLength = encodeBase64Url(signature, signature.length, token, tokenLength);
+    return new String(token, 0, tokenLength, US_ASCII);
+  }
+
+  private static int base64Length(int length) {
+    return (length / 3) * 4 + (length % 3 == 0 ? 0 : length % 3 + 1);
+  }
+
+  /**
+   * Unpadded base64url encoding of src[0, length) into dst starting at pos.
+   *
+   * @return the position after the last byte written.
+   */
+  private static int encodeBase64Url(byte[] src, int length, byte[] dst, int pos) {
+    int i = 0;
+    for (int end = length - length % 3; i < end; i += 3) {
+      int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+      dst[pos++] = BASE64URL[bits >>> 18];
+      dst[pos++] = BASE64URL[(bits >>> 12) & 0x3f];
+      dst[pos++] = BASE64URL[(bits >>> 6) & 0x3f];
+      dst[pos++] = BASE64URL[bits & 0x3f];
+    }
+    int remaining = length - i;
+    if (remaining == 1) {
+      int bits = (src[i] & 0xff) << 16;
+      dst[pos++] = BASE64URL[bits >>> 18];
+      dst[pos++] = BASE64URL[(bits >>> 12) & 0x3f];
+    } else if (remaining == 2) {
+      int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8;
+      dst[pos++] = BASE64URL[bits >>> 18];
+      dst[pos++] = BASE64URL[(bits >>> 12) & 0x3f];
+      dst[pos++] = BASE64URL[(bits >>> 6) & 0x3f];
+    }
+    return pos;
+  }
+}
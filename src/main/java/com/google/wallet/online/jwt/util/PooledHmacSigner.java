@@ -0,0 +1,151 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import com.google.gson.JsonObject;
+
+import net.oauth.jsontoken.JsonToken;
+import net.oauth.jsontoken.crypto.AbstractSigner;
+import net.oauth.jsontoken.crypto.SignatureAlgorithm;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Thread safe HMAC SHA-256 signer. The {@link javax.crypto.Mac} instances are initialized once
+ * with the key and striped across a small number of locks, so concurrent requests neither share
+ * a single Mac nor pay for the provider lookup and key setup on every call.
+ */
+public class PooledHmacSigner extends AbstractSigner {
+
+  private static final String HMAC_SHA256_ALG = "HmacSHA256";
+
+  private final Mac[] macs;
+  private final ReentrantLock[] locks;
+  private final int mask;
+  private final AtomicLong contention = new AtomicLong();
+  // base64url of the JWT header jsontoken writes for this signer
+  private final byte[] encodedHeader;
+
+  /**
+   * @param issuer issuer the signer is used for.
+   * @param keyId optional key id, may be null.
+   * @param keyBytes raw HMAC key.
+   * @throws InvalidKeyException if the key is rejected by the Mac.
+   */
+  public PooledHmacSigner(String issuer, String keyId, byte[] keyBytes)
+      throws InvalidKeyException {
+    super(issuer, keyId);
+    JsonObject header = new JsonObject();
+    header.addProperty(JsonToken.ALGORITHM_HEADER, SignatureAlgorithm.HS256.getNameForJson());
+    if (keyId != null) {
+      header.addProperty(JsonToken.KEY_ID_HEADER, keyId);
+    }
+    this.encodedHeader = Base64.encodeBase64URLSafe(header.toString().getBytes(SignerCache.UTF_8));
+    int stripes = stripeCount();
+    this.macs = new Mac[stripes];
+    this.locks = new ReentrantLock[stripes];
+    this.mask = stripes - 1;
+
+    SecretKeySpec key = new SecretKeySpec(keyBytes, HMAC_SHA256_ALG);
+    Mac prototype = newMac();
+    prototype.init(key);
+    for (int i = 0; i < stripes; i++) {
+      macs[i] = copyOf(prototype, key);
+      locks[i] = new ReentrantLock();
+    }
+  }
+
+  @Override
+  public SignatureAlgorithm getSignatureAlgorithm() {
+    return SignatureAlgorithm.HS256;
+  }
+
+  @Override
+  public byte[] sign(byte[] source) {
+    return sign(source, 0, source.length);
+  }
+
+  /**
+   * Computes the HMAC of a slice of the given array.
+   *
+   * @param source bytes to sign.
+   * @param offset start of the slice.
+   * @param length length of the slice.
+   * @return the 32 byte signature.
+   */
+  public byte[] sign(byte[] source, int offset, int length) {
+    int stripe = (int) Thread.currentThread().getId() & mask;
+    ReentrantLock lock = locks[stripe];
+    if (!lock.tryLock()) {
+      contention.incrementAndGet();
+      lock.lock();
+    }
+    try {
+      // doFinal resets the Mac to its initialized state, so no re-init is required
+      Mac mac = macs[stripe];
+      mac.update(source, offset, length);
+      return mac.doFinal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the encoded JWT header, with the key id if there is one. Not to be modified.
+   */
+  byte[] getEncodedHeader() {
+    return encodedHeader;
+  }
+
+  /**
+   * @return number of times a caller had to wait for another thread holding its stripe.
+   */
+  public long getContentionCount() {
+    return contention.get();
+  }
+
+  private static int stripeCount() {
+    int cpus = Math.max(2, Runtime.getRuntime().availableProcessors());
+    return Integer.highestOneBit(cpus - 1) << 1;
+  }
+
+  private static Mac newMac() {
+    try {
+      return Mac.getInstance(HMAC_SHA256_ALG);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("cannot use HmacSHA256 on system without HmacSHA256 alg", e);
+    }
+  }
+
+  private static Mac copyOf(Mac prototype, SecretKeySpec key) throws InvalidKeyException {
+    try {
+      return (Mac) prototype.clone();
+    } catch (CloneNotSupportedException e) {
+      // Some providers can't clone, fall back to a fresh lookup
+      Mac mac = newMac();
+      mac.init(key);
+      return mac;
+    }
+  }
+}
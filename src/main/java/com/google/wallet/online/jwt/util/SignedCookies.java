@@ -0,0 +1,121 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cookie values signed with a merchant's {@link PooledHmacSigner}, so state the server hands
+ * the browser comes back unchanged without being stored on the server. A value is encoded as
+ *
+ * <pre>
+ * exp.base64url(value).base64url(mac)
+ * </pre>
+ *
+ * where exp is in seconds and mac is the first 16 bytes of the HMAC-SHA256 of the cookie name,
+ * exp and encoded value. The name is signed so a value can't be moved to another cookie. The
+ * values are not encrypted, only state the user may read can be stored this way.
+ */
+public class SignedCookies {
+
+  // Keeps cookie signatures apart from JWT signatures made with the same key
+  private static final String DOMAIN = "cookie:";
+  private static final int MAC_BYTES = 16;
+
+  private static final AtomicLong rejected = new AtomicLong();
+  private static final AtomicLong expired = new AtomicLong();
+
+  private SignedCookies() {
+  }
+
+  /**
+   * Signs a cookie value.
+   *
+   * @param signer the merchant's signer, see {@link SignerCache#getSigner}.
+   * @param name cookie name.
+   * @param value cookie value, any string.
+   * @param exp expiration time, in seconds.
+   * @return the signed value, made of characters allowed in a cookie.
+   */
+  public static String encode(PooledHmacSigner signer, String name, String value, long exp) {
+    String payload = exp + "." + base64(value.getBytes(SignerCache.UTF_8));
+    return payload + "." + base64(mac(signer, name, payload));
+  }
+
+  /**
+   * Checks a signed cookie value.
+   *
+   * @param signer the merchant's signer.
+   * @param name cookie name.
+   * @param cookie value as encoded by {@link #encode}.
+   * @return the value, or null if cookie is malformed, forged, signed for another cookie or
+   *     expired.
+   */
+  public static String decode(PooledHmacSigner signer, String name, String cookie) {
+    int last = cookie.lastIndexOf('.');
+    int first = cookie.indexOf('.');
+    if (first <= 0 || last <= first) {
+      rejected.incrementAndGet();
+      return null;
+    }
+    String payload = cookie.substring(0, last);
+    byte[] mac = Base64.decodeBase64(cookie.substring(last + 1).getBytes(SignerCache.UTF_8));
+    if (!MessageDigest.isEqual(mac, mac(signer, name, payload))) {
+      rejected.incrementAndGet();
+      return null;
+    }
+    long exp;
+    try {
+      exp = Long.parseLong(payload.substring(0, first));
+    } catch (NumberFormatException e) {
+      rejected.incrementAndGet();
+      return null;
+    }
+    if (exp * 1000L <= System.currentTimeMillis()) {
+      expired.incrementAndGet();
+      return null;
+    }
+    byte[] value = Base64.decodeBase64(payload.substring(first + 1).getBytes(SignerCache.UTF_8));
+    return new String(value, SignerCache.UTF_8);
+  }
+
+  /**
+   * @return number of cookies refused as malformed or wrongly signed, for monitoring.
+   */
+  public static long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * @return number of correctly signed cookies refused as expired.
+   */
+  public static long getExpiredCount() {
+    return expired.get();
+  }
+
+  private static byte[] mac(PooledHmacSigner signer, String name, String payload) {
+    byte[] source = (DOMAIN + name + "." + payload).getBytes(SignerCache.UTF_8);
+    return Arrays.copyOf(signer.sign(source), MAC_BYTES);
+  }
+
+  private static String base64(byte[] bytes) {
+    return new String(Base64.encodeBase64URLSafe(bytes), SignerCache.UTF_8);
+  }
+}
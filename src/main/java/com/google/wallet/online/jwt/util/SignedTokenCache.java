@@ -0,0 +1,276 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import com.google.wallet.online.jwt.BaseJwt;
+
+import java.security.InvalidKeyException;
+import java.security.SignatureException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of signed JWTs keyed by the request fields they were built from, so a client repeating
+ * the same request gets the token already signed for it. A token is served while it has more
+ * than the configured time left before its exp claim, after which the next request signs a new
+ * one. Concurrent identical requests wait for a single signing rather than each signing.
+ *
+ * Entries are tied to the signer that produced them, so changing the merchant secret or
+ * environment never serves a token signed with the old key.
+ */
+public class SignedTokenCache {
+
+  private final ConcurrentMap<String, Future<Token>> entries =
+      new ConcurrentHashMap<String, Future<Token>>();
+  private final int maxSize;
+  private final long minRemainingMillis;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxSize maximum number of cached tokens.
+   * @param minRemainingMillis a cached token is only served while it has more than this left
+   *     before it expires.
+   */
+  public SignedTokenCache(int maxSize, long minRemainingMillis) {
+    this.maxSize = maxSize;
+    this.minRemainingMillis = minRemainingMillis;
+  }
+
+  /**
+   * Builds an unambiguous cache key from request fields, any of which may be null.
+   */
+  public static String key(String... fields) {
+    StringBuilder key = new StringBuilder();
+    for (String field : fields) {
+      if (field == null) {
+        key.append('-');
+      } else {
+        // length prefixed, so no field value can run into the next one
+        key.append(field.length()).append(':').append(field);
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * Returns the token cached for key, or signs target with {@link JwtGenerator#javaToJWT} and
+   * caches it. target must be the container the key was built from.
+   *
+   * @param key request key, see {@link #key}.
+   * @param target container to sign on a miss.
+   * @param merchantSecret secret to sign with.
+   * @return the signed JWT.
+   */
+  public String getOrSign(String key, BaseJwt target, String merchantSecret)
+      throws InvalidKeyException, SignatureException {
+    return getOrSignToken(key, target, merchantSecret).getJwt();
+  }
+
+  /**
+   * Like {@link #getOrSign}, also returning the iat and exp of the token served, which are
+   * those of target only if it was signed by this call.
+   */
+  public Token getOrSignToken(String key, final BaseJwt target, final String merchantSecret)
+      throws InvalidKeyException, SignatureException {
+    final PooledHmacSigner signer = SignerCache.getSigner(target.getIss(), merchantSecret);
+    while (true) {
+      long now = System.currentTimeMillis();
+      Future<Token> cached = entries.get(key);
+      if (cached != null && cached.isDone()) {
+        Token token = awaitOrNull(cached);
+        if (token != null && token.signer == signer
+            && token.getExp() * 1000L - now > minRemainingMillis) {
+          hits.incrementAndGet();
+          return token;
+        }
+      } else if (cached != null) {
+        // Someone is signing this request right now, use their token
+        Token token = await(key, cached);
+        if (token.signer == signer) {
+          hits.incrementAndGet();
+          return token;
+        }
+      }
+
+      FutureTask<Token> task = new FutureTask<Token>(new Callable<Token>() {
+        public Token call() throws InvalidKeyException, SignatureException {
+          long signedAt = System.currentTimeMillis();
+          String jwt = JwtGenerator.javaToJWT(target, merchantSecret);
+          // javaToJWT fills in iat and the default lifetime when they are missing
+          long iat = target.getIat() != null ? target.getIat() : signedAt / 1000L;
+          long exp = target.getExp() != null ? target.getExp()
+              : (signedAt + JwtGenerator.EXPIRATION_DELTA) / 1000L;
+          return new Token(signer, jwt, iat, exp);
+        }
+      });
+      boolean installed = cached == null
+          ? entries.putIfAbsent(key, task) == null
+          : entries.replace(key, cached, task);
+      if (installed) {
+        misses.incrementAndGet();
+        if (cached == null) {
+          evictIfFull(now);
+        }
+        task.run();
+        return await(key, task);
+      }
+      // Lost the race to another request for the same key, look again
+    }
+  }
+
+  /**
+   * Drops every cached token.
+   */
+  public void clear() {
+    entries.clear();
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of tokens signed because none was cached or the cached one was too old.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  private void evictIfFull(long now) {
+    if (entries.size() <= maxSize) {
+      return;
+    }
+    // Expired tokens first, then whatever comes, down to three quarters so this runs rarely
+    int target = maxSize - maxSize / 4;
+    for (Iterator<Map.Entry<String, Future<Token>>> it = entries.entrySet().iterator();
+        it.hasNext() && entries.size() > target; ) {
+      Future<Token> future = it.next().getValue();
+      if (future.isDone()) {
+        Token token = awaitOrNull(future);
+        if (token == null || token.getExp() * 1000L - now <= minRemainingMillis) {
+          it.remove();
+        }
+      }
+    }
+    for (Iterator<String> it = entries.keySet().iterator();
+        it.hasNext() && entries.size() > target; ) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  private Token await(String key, Future<Token> future)
+      throws InvalidKeyException, SignatureException {
+    try {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          Token token = future.get();
+          if (interrupted) {
+            Thread.currentThread().interrupt();
+          }
+          return token;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException e) {
+      // Don't keep the failure around, the next request signs again
+      entries.remove(key, future);
+      Throwable cause = e.getCause();
+      if (cause instanceof InvalidKeyException) {
+        throw (InvalidKeyException) cause;
+      }
+      if (cause instanceof SignatureException) {
+        throw (SignatureException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new SignatureException(cause);
+    }
+  }
+
+  /**
+   * @return the result of a completed future, or null if it failed.
+   */
+  private static Token awaitOrNull(Future<Token> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      return null;
+    }
+  }
+
+  /**
+   * A signed JWT with the times it was signed with, in seconds.
+   */
+  public static final class Token {
+    final PooledHmacSigner signer;
+    private final String jwt;
+    private final long iat;
+    private final long exp;
+    private final AtomicBoolean recorded = new AtomicBoolean();
+
+    Token(PooledHmacSigner signer, String jwt, long iat, long exp) {
+      this.signer = signer;
+      this.jwt = jwt;
+      this.iat = iat;
+      this.exp = exp;
+    }
+
+    public String getJwt() {
+      return jwt;
+    }
+
+    public long getIat() {
+      return iat;
+    }
+
+    public long getExp() {
+      return exp;
+    }
+
+    /**
+     * Lets callers that serve the same token many times record it once, in a ledger say.
+     *
+     * @return true for the first caller only.
+     */
+    public boolean markRecorded() {
+      return recorded.compareAndSet(false, true);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches one {@link PooledHmacSigner} per issuer and merchant secret so the HMAC state is set up
+ * once instead of on every signed request. The signers put the {@link #keyId} of their secret in
+ * the kid header, so verifiers can tell which key a token was signed with.
+ */
+public class SignerCache {
+
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final ConcurrentMap<Key, PooledHmacSigner> signers =
+      new ConcurrentHashMap<Key, PooledHmacSigner>();
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  // Contention of signers that have already been evicted
+  private static final AtomicLong retiredContention = new AtomicLong();
+
+  private SignerCache() {
+  }
+
+  /**
+   * Returns the shared signer for the issuer and secret, creating it on first use.
+   *
+   * @param issuer the JWT issuer.
+   * @param secret the merchant secret.
+   * @return a thread safe signer.
+   * @throws InvalidKeyException
+   */
+  public static PooledHmacSigner getSigner(String issuer, String secret)
+      throws InvalidKeyException {
+    Key key = new Key(issuer, secret);
+    PooledHmacSigner signer = signers.get(key);
+    if (signer != null) {
+      hits.incrementAndGet();
+      return signer;
+    }
+    misses.incrementAndGet();
+    signer = new PooledHmacSigner(issuer, keyId(secret), secret.getBytes(UTF_8));
+    PooledHmacSigner existing = signers.putIfAbsent(key, signer);
+    return existing != null ? existing : signer;
+  }
+
+  /**
+   * Key id of a secret: the base64url of the first 6 bytes of its SHA-256. It can't reveal more
+   * of the secret than a token signed with it already does.
+   *
+   * @param secret the merchant secret.
+   * @return 8 character key id.
+   */
+  public static String keyId(String secret) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(UTF_8));
+      return new String(Base64.encodeBase64URLSafe(Arrays.copyOf(digest, 6)), UTF_8);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /**
+   * Drops every signer built from the given secret, e.g. after the secret was rotated.
+   *
+   * @param secret the merchant secret.
+   */
+  public static void invalidate(String secret) {
+    for (Iterator<Key> it = signers.keySet().iterator(); it.hasNext();) {
+      Key key = it.next();
+      if (key.secret.equals(secret)) {
+        retire(signers.get(key));
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Drops all cached signers.
+   */
+  public static void invalidateAll() {
+    for (Iterator<PooledHmacSigner> it = signers.values().iterator(); it.hasNext();) {
+      retire(it.next());
+      it.remove();
+    }
+  }
+
+  public static long getHitCount() {
+    return hits.get();
+  }
+
+  public static long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of signing calls that had to wait for a Mac stripe.
+   */
+  public static long getContentionCount() {
+    long total = retiredContention.get();
+    for (PooledHmacSigner signer : signers.values()) {
+      total += signer.getContentionCount();
+    }
+    return total;
+  }
+
+  public static int size() {
+    return signers.size();
+  }
+
+  private static void retire(PooledHmacSigner signer) {
+    if (signer != null) {
+      retiredContention.addAndGet(signer.getContentionCount());
+    }
+  }
+
+  /**
+   * Cache key, the pair of issuer and secret.
+   */
+  private static final class Key {
+    private final String issuer;
+    private final String secret;
+
+    Key(String issuer, String secret) {
+      this.issuer = issuer;
+      this.secret = secret;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return secret.equals(other.secret)
+          && (issuer == null ? other.issuer == null : issuer.equals(other.issuer));
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * secret.hashCode() + (issuer == null ? 0 : issuer.hashCode());
+    }
+  }
+}
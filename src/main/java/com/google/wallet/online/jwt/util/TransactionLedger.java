@@ -0,0 +1,514 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only ledger of issued JWTs, in a directory of fixed-size memory-mapped segment files.
+ * Each record is its payload length, the CRC32 of the payload and the payload, and a segment
+ * ends at the first zero length. On opening, the segments are scanned to rebuild the index of
+ * records by gid, and a torn record left by a crash ends the ledger.
+ *
+ * {@link #append} returns once the record is on disk. Appends made while a flush is running
+ * wait for it and are then flushed together, so concurrent appends share one msync.
+ * {@link #close} flushes the last segment and lets go of the mappings, after which appends
+ * fail.
+ */
+public class TransactionLedger {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int HEADER_BYTES = 8;
+  private static final int DIGEST_BYTES = 32;
+
+  private final File directory;
+  private final int segmentBytes;
+
+  // Every mapped segment, appends go to the last one
+  private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<MappedByteBuffer>();
+  private final ReentrantLock appendLock = new ReentrantLock();
+  // Offset in the last segment, guarded by appendLock
+  private int position;
+  // Set under appendLock, no append starts once it is
+  private volatile boolean closed;
+
+  // Positions are segment * segmentBytes + offset, so they grow with every append
+  private final ConcurrentMap<String, long[]> index = new ConcurrentHashMap<String, long[]>();
+  private volatile long written;
+  // Guards committed and flushing, taken after appendLock when both are needed
+  private final Object commitLock = new Object();
+  private long committed;
+  private boolean flushing;
+
+  private final AtomicLong records = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+
+  /**
+   * A ledger entry for one issued JWT.
+   */
+  public static final class Record {
+    private final String gid;
+    private final TransactionRegistry.Event type;
+    private final String merchant;
+    private final String total;
+    private final long iat;
+    private final byte[] digest;
+
+    /**
+     * @param gid Google transaction id, may be null.
+     * @param type kind of request the JWT is.
+     * @param merchant merchant id the JWT was issued by.
+     * @param total order total, may be null.
+     * @param iat issued at time of the JWT, in seconds.
+     * @param jwt the JWT, only its SHA-256 digest is kept.
+     */
+    public Record(String gid, TransactionRegistry.Event type, String merchant, String total,
+        long iat, String jwt) {
+      this(gid, type, merchant, total, iat, digest(jwt));
+    }
+
+    Record(String gid, TransactionRegistry.Event type, String merchant, String total, long iat,
+        byte[] digest) {
+      this.gid = gid;
+      this.type = type;
+      this.merchant = merchant;
+      this.total = total;
+      this.iat = iat;
+      this.digest = digest;
+    }
+
+    public String getGid() {
+      return gid;
+    }
+
+    public TransactionRegistry.Event getType() {
+      return type;
+    }
+
+    public String getMerchant() {
+      return merchant;
+    }
+
+    public String getTotal() {
+      return total;
+    }
+
+    public long getIat() {
+      return iat;
+    }
+
+    /**
+     * @return SHA-256 digest of the JWT.
+     */
+    public byte[] getDigest() {
+      return digest.clone();
+    }
+
+    /**
+     * @return whether this records jwt.
+     */
+    public boolean matches(String jwt) {
+      return MessageDigest.isEqual(digest, digest(jwt));
+    }
+
+    private static byte[] digest(String jwt) {
+      try {
+        return MessageDigest.getInstance("SHA-256").digest(jwt.getBytes(UTF_8));
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 is not available", e);
+      }
+    }
+  }
+
+  /**
+   * Opens the ledger in directory, creating it if needed.
+   *
+   * @param directory directory of the segment files.
+   * @param segmentBytes size of each segment file.
+   * @throws IOException if the directory or a segment can't be opened.
+   */
+  public TransactionLedger(File directory, int segmentBytes) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create ledger directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    for (int i = 0; segmentFile(i).exists(); i++) {
+      segments.add(map(segmentFile(i)));
+      position = recover(i);
+    }
+    if (segments.isEmpty()) {
+      segments.add(map(segmentFile(0)));
+      position = 0;
+    }
+    written = offset(segments.size() - 1, position);
+    committed = written;
+  }
+
+  /**
+   * Appends a record and waits until it is on disk.
+   *
+   * @throws IOException if the record or one of its fields is too large, or a new segment
+   *     can't be created.
+   */
+  public void append(Record record) throws IOException {
+    appendAll(Collections.singletonList(record));
+  }
+
+  /**
+   * Appends records and waits until all of them are on disk, with a single flush unless they
+   * fill up a segment.
+   *
+   * @throws IOException if a record or one of its fields is too large, in which case none is
+   *     appended, or a new segment can't be created. The records before it may have been
+   *     appended then.
+   */
+  public void appendAll(List<Record> batch) throws IOException {
+    byte[][] payloads = new byte[batch.size()][];
+    for (int i = 0; i < payloads.length; i++) {
+      payloads[i] = encode(batch.get(i));
+      if (HEADER_BYTES + payloads[i].length > segmentBytes) {
+        throw new IOException("Ledger record of " + payloads[i].length + " bytes is too large");
+      }
+    }
+
+    long end;
+    appendLock.lock();
+    try {
+      for (int i = 0; i < payloads.length; i++) {
+        write(batch.get(i).gid, payloads[i]);
+      }
+      end = written;
+    } finally {
+      appendLock.unlock();
+    }
+    records.addAndGet(payloads.length);
+    commit(end);
+  }
+
+  /**
+   * @return the records for gid, oldest first.
+   */
+  public List<Record> lookup(String gid) {
+    long[] positions = index.get(gid);
+    // a copy, so close can't drop the segments while they are read
+    List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>(segments);
+    if (positions == null || mapped.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Record> found = new ArrayList<Record>(positions.length);
+    for (long recordPosition : positions) {
+      ByteBuffer buffer = mapped.get((int) (recordPosition / segmentBytes)).duplicate();
+      int offset = (int) (recordPosition % segmentBytes);
+      int length = buffer.getInt(offset);
+      buffer.position(offset + HEADER_BYTES);
+      found.add(decode(buffer, length));
+    }
+    return found;
+  }
+
+  /**
+   * Flushes the last segment and drops the mappings and the index, so reopening the directory
+   * doesn't leave the old mappings of its files alive next to the new ones. Appends fail from
+   * then on and lookups find nothing. The files themselves were closed when they were mapped.
+   *
+   * @throws IOException if the last segment couldn't be flushed.
+   */
+  public void close() throws IOException {
+    appendLock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      segments.get(segments.size() - 1).force();
+      synchronized (commitLock) {
+        committed = written;
+        commitLock.notifyAll();
+      }
+      index.clear();
+      segments.clear();
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /**
+   * Checks up front that a record can be appended, for records written behind the response
+   * where a failure would drop the whole batch.
+   *
+   * @throws IOException if one of its fields is too large.
+   */
+  public static void checkFields(Record record) throws IOException {
+    bytes("gid", record.gid);
+    bytes("merchant", record.merchant);
+    bytes("total", record.total);
+  }
+
+  /**
+   * @return number of records appended since the ledger was opened.
+   */
+  public long getRecordCount() {
+    return records.get();
+  }
+
+  /**
+   * @return number of flushes to disk, lower than the record count when appends were grouped.
+   */
+  public long getFlushCount() {
+    return flushes.get();
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Writes a record at the end of the ledger and indexes it. Called holding appendLock.
+   */
+  private void write(String gid, byte[] payload) throws IOException {
+    if (closed) {
+      throw new IOException("Ledger is closed");
+    }
+    if (position + HEADER_BYTES + payload.length > segmentBytes) {
+      roll();
+    }
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    int segment = segments.size() - 1;
+    MappedByteBuffer mapped = segments.get(segment);
+    ByteBuffer buffer = mapped.duplicate();
+    buffer.position(position + 4);
+    buffer.putInt((int) crc.getValue()).put(payload);
+    // the length goes in last, so a reader never sees a record that isn't all there
+    mapped.putInt(position, payload.length);
+    long recordPosition = offset(segment, position);
+    position += HEADER_BYTES + payload.length;
+    written = offset(segment, position);
+    if (gid != null) {
+      addToIndex(gid, recordPosition);
+    }
+  }
+
+  /**
+   * Waits until everything up to end is on disk. If no flush is running the caller flushes
+   * all that was appended so far, otherwise it waits for the running one and checks again.
+   */
+  private void commit(long end) throws IOException {
+    synchronized (commitLock) {
+      while (committed < end && flushing) {
+        try {
+          commitLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted waiting for the ledger to flush");
+        }
+      }
+      if (committed >= end) {
+        return;
+      }
+      flushing = true;
+    }
+    long target = 0;
+    boolean flushed = false;
+    try {
+      MappedByteBuffer segment;
+      appendLock.lock();
+      try {
+        // earlier segments were flushed when they filled up, and close flushed the last one
+        target = written;
+        segment = closed ? null : segments.get(segments.size() - 1);
+      } finally {
+        appendLock.unlock();
+      }
+      if (segment != null) {
+        segment.force();
+      }
+      flushed = true;
+    } finally {
+      synchronized (commitLock) {
+        if (flushed) {
+          committed = Math.max(committed, target);
+          flushes.incrementAndGet();
+        }
+        flushing = false;
+        commitLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Starts a new segment, once the current one is on disk. Called holding appendLock.
+   */
+  private void roll() throws IOException {
+    int segment = segments.size() - 1;
+    segments.get(segment).force();
+    synchronized (commitLock) {
+      committed = Math.max(committed, offset(segment, position));
+    }
+    segments.add(map(segmentFile(segment + 1)));
+    position = 0;
+  }
+
+  /**
+   * Scans a segment, indexing its records.
+   *
+   * @return offset after the last whole record.
+   */
+  private int recover(int segment) {
+    ByteBuffer buffer = segments.get(segment).duplicate();
+    int offset = 0;
+    while (offset + HEADER_BYTES <= segmentBytes) {
+      int length = buffer.getInt(offset);
+      if (length <= 0 || offset + HEADER_BYTES + length > segmentBytes) {
+        break;
+      }
+      byte[] payload = new byte[length];
+      buffer.position(offset + HEADER_BYTES);
+      buffer.get(payload);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+        break;
+      }
+      Record record = decode(ByteBuffer.wrap(payload), length);
+      if (record.gid != null) {
+        addToIndex(record.gid, offset(segment, offset));
+      }
+      offset += HEADER_BYTES + length;
+    }
+    if (offset + 4 <= segmentBytes && buffer.getInt(offset) != 0) {
+      // Clear a torn record, so it can't be read back behind the records written over it
+      buffer.position(offset);
+      while (buffer.hasRemaining()) {
+        buffer.put((byte) 0);
+      }
+    }
+    return offset;
+  }
+
+  private void addToIndex(String gid, long recordPosition) {
+    long[] positions = index.get(gid);
+    if (positions == null) {
+      positions = new long[] {recordPosition};
+    } else {
+      positions = Arrays.copyOf(positions, positions.length + 1);
+      positions[positions.length - 1] = recordPosition;
+    }
+    index.put(gid, positions);
+  }
+
+  private long offset(int segment, int offsetInSegment) {
+    return (long) segment * segmentBytes + offsetInSegment;
+  }
+
+  private File segmentFile(int segment) {
+    return new File(directory, String.format("ledger-%06d.seg", segment));
+  }
+
+  private MappedByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if (raf.length() < segmentBytes) {
+        raf.setLength(segmentBytes);
+      }
+      // the mapping stays valid after the file is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static byte[] encode(Record record) throws IOException {
+    byte[] gid = bytes("gid", record.gid);
+    byte[] merchant = bytes("merchant", record.merchant);
+    byte[] total = bytes("total", record.total);
+    ByteBuffer buffer = ByteBuffer.allocate(8 + 1 + 3 * 2 + length(gid) + length(merchant)
+        + length(total) + DIGEST_BYTES);
+    buffer.putLong(record.iat).put((byte) record.type.ordinal());
+    putString(buffer, gid);
+    putString(buffer, merchant);
+    putString(buffer, total);
+    buffer.put(record.digest);
+    return buffer.array();
+  }
+
+  private static Record decode(ByteBuffer buffer, int length) {
+    long iat = buffer.getLong();
+    TransactionRegistry.Event type = TransactionRegistry.Event.values()[buffer.get()];
+    String gid = getString(buffer);
+    String merchant = getString(buffer);
+    String total = getString(buffer);
+    byte[] digest = new byte[DIGEST_BYTES];
+    buffer.get(digest);
+    return new Record(gid, type, merchant, total, iat, digest);
+  }
+
+  /**
+   * @throws IOException if value is longer than the length prefix can hold, a shortened value
+   *     could no longer be reconciled with what was issued.
+   */
+  private static byte[] bytes(String field, String value) throws IOException {
+    if (value == null) {
+      return null;
+    }
+    byte[] bytes = value.getBytes(UTF_8);
+    if (bytes.length > Short.MAX_VALUE) {
+      throw new IOException("Ledger " + field + " of " + bytes.length + " bytes is too large");
+    }
+    return bytes;
+  }
+
+  private static int length(byte[] bytes) {
+    return bytes == null ? 0 : bytes.length;
+  }
+
+  private static void putString(ByteBuffer buffer, byte[] bytes) {
+    if (bytes == null) {
+      buffer.putShort((short) -1);
+    } else {
+      buffer.putShort((short) bytes.length).put(bytes);
+    }
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    short length = buffer.getShort();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks each Google transaction id through the masked wallet, full wallet and transaction
+ * status requests, refusing requests that can't follow what the transaction already went
+ * through. See {@link State#after} for the allowed transitions. The registry is kept in the
+ * memory of one instance, so it can only refuse what it has seen.
+ *
+ * Transactions are spread over lock stripes. Each stripe forgets transactions idle for longer
+ * than the configured time with its own timer wheel, which is advanced by the requests that
+ * reach the stripe rather than by a thread: a request touches at most one slot per tick that
+ * passed since the stripe was last used.
+ */
+public class TransactionRegistry {
+
+  private static final int STRIPES = 16;
+  // Ticks an idle transaction lives for, the wheel has twice as many slots so every deadline
+  // falls within one turn
+  private static final int IDLE_TICKS = 64;
+  private static final int WHEEL_SLOTS = 2 * IDLE_TICKS;
+
+  /**
+   * Where a transaction is.
+   */
+  public enum State {
+    MASKED, FULL, NOTIFIED;
+
+    /**
+     * The masked wallet can be changed until the transaction status is sent, also after a full
+     * wallet request failed. A full wallet request needs no earlier masked wallet request, the
+     * first one is made with the gid the wallet gave the page. The status is sent once.
+     *
+     * Only requests known to be impossible are refused. The registry only sees the requests
+     * made to this instance since it started, so a status for a transaction it doesn't know,
+     * or only knows the masked wallet of, is let through: its full wallet request may have
+     * gone to another instance.
+     *
+     * @param current state of the transaction, null if it is unknown.
+     * @param event the request.
+     * @return the state after the request, null if the request is refused.
+     */
+    public static State after(State current, Event event) {
+      if (current == NOTIFIED) {
+        return null;
+      }
+      switch (event) {
+        case MASKED_WALLET:
+          return MASKED;
+        case FULL_WALLET:
+          return FULL;
+        case STATUS:
+          return NOTIFIED;
+        default:
+          throw new AssertionError(event);
+      }
+    }
+  }
+
+  /**
+   * A request made for a transaction.
+   */
+  public enum Event {
+    MASKED_WALLET, FULL_WALLET, STATUS
+  }
+
+  /**
+   * Thrown when a request doesn't fit the state of its transaction.
+   */
+  public static class IllegalTransitionException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public IllegalTransitionException(String message) {
+      super(message);
+    }
+  }
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final long tickMillis;
+
+  private final AtomicIntegerArray counts = new AtomicIntegerArray(State.values().length);
+  private final AtomicLong refused = new AtomicLong();
+  private final AtomicLong untracked = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+
+  /**
+   * @param idleMillis time after which a transaction with no requests is forgotten.
+   */
+  public TransactionRegistry(long idleMillis) {
+    this.tickMillis = Math.max(1, idleMillis / IDLE_TICKS);
+    long tick = System.currentTimeMillis() / tickMillis;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe(tick);
+    }
+  }
+
+  /**
+   * Moves the transaction to its state after event.
+   *
+   * @param gid Google transaction id.
+   * @param event the request being made.
+   * @return the state before the request, null if the transaction was unknown. Pass it to
+   *     {@link #revert} to undo the transition.
+   * @throws IllegalTransitionException if the request doesn't fit the transaction's state.
+   */
+  public State advance(String gid, Event event) throws IllegalTransitionException {
+    Stripe stripe = stripeFor(gid);
+    long tick = System.currentTimeMillis() / tickMillis;
+    stripe.lock.lock();
+    try {
+      stripe.expire(tick);
+      Transaction transaction = stripe.transactions.get(gid);
+      State current = transaction == null ? null : transaction.state;
+      State next = State.after(current, event);
+      if (next == null) {
+        refused.incrementAndGet();
+        throw new IllegalTransitionException(current == null
+            ? "Unknown transaction " + gid
+            : "Transaction " + gid + " is " + current + ", refusing " + event);
+      }
+      if (event == Event.STATUS && current != State.FULL) {
+        untracked.incrementAndGet();
+      }
+      if (transaction == null) {
+        transaction = new Transaction(gid, next, tick);
+        stripe.transactions.put(gid, transaction);
+        stripe.schedule(transaction);
+      } else {
+        counts.decrementAndGet(current.ordinal());
+        transaction.state = next;
+        transaction.lastTick = tick;
+      }
+      counts.incrementAndGet(next.ordinal());
+      return current;
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * Undoes {@link #advance}, if no other request moved the transaction since.
+   *
+   * @param gid Google transaction id.
+   * @param current the state advance moved the transaction to.
+   * @param previous the state advance returned.
+   */
+  public void revert(String gid, State current, State previous) {
+    Stripe stripe = stripeFor(gid);
+    stripe.lock.lock();
+    try {
+      Transaction transaction = stripe.transactions.get(gid);
+      if (transaction == null || transaction.state != current) {
+        return;
+      }
+      counts.decrementAndGet(current.ordinal());
+      if (previous == null) {
+        // the wheel drops it when its slot comes round
+        stripe.transactions.remove(gid);
+      } else {
+        transaction.state = previous;
+        counts.incrementAndGet(previous.ordinal());
+      }
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * @return the state of the transaction, null if it is unknown.
+   */
+  public State getState(String gid) {
+    Stripe stripe = stripeFor(gid);
+    stripe.lock.lock();
+    try {
+      stripe.expire(System.currentTimeMillis() / tickMillis);
+      Transaction transaction = stripe.transactions.get(gid);
+      return transaction == null ? null : transaction.state;
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * @return number of transactions in state. Stripes not used for a while may still count
+   *     transactions that are due to expire.
+   */
+  public int getCount(State state) {
+    return counts.get(state.ordinal());
+  }
+
+  /**
+   * @return number of requests refused because they didn't fit the transaction's state.
+   */
+  public long getRefusedCount() {
+    return refused.get();
+  }
+
+  /**
+   * @return number of statuses let through for transactions whose full wallet request this
+   *     instance didn't see, e.g. because it went to another instance or came before a restart.
+   */
+  public long getUntrackedStatusCount() {
+    return untracked.get();
+  }
+
+  /**
+   * @return number of transactions forgotten after being idle.
+   */
+  public long getExpiredCount() {
+    return expired.get();
+  }
+
+  private Stripe stripeFor(String gid) {
+    int hash = gid.hashCode();
+    // fold in the high bits, only the low ones pick the stripe
+    return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+  }
+
+  private static final class Transaction {
+    final String gid;
+    State state;
+    // tick of the last request
+    long lastTick;
+
+    Transaction(String gid, State state, long lastTick) {
+      this.gid = gid;
+      this.state = state;
+      this.lastTick = lastTick;
+    }
+  }
+
+  /**
+   * Transactions of one stripe and their timer wheel, guarded by the lock. A transaction sits
+   * in the slot of the tick it expires at if it has no further requests. Requests only update
+   * the last tick, and when a slot comes round the transactions that did have requests move
+   * on to the slot of their new deadline.
+   */
+  private final class Stripe {
+    final ReentrantLock lock = new ReentrantLock();
+    final Map<String, Transaction> transactions = new HashMap<String, Transaction>();
+    final List<List<Transaction>> wheel = new ArrayList<List<Transaction>>(WHEEL_SLOTS);
+    long currentTick;
+
+    Stripe(long tick) {
+      for (int i = 0; i < WHEEL_SLOTS; i++) {
+        wheel.add(new ArrayList<Transaction>());
+      }
+      currentTick = tick;
+    }
+
+    void schedule(Transaction transaction) {
+      wheel.get((int) ((transaction.lastTick + IDLE_TICKS) & (WHEEL_SLOTS - 1))).add(transaction);
+    }
+
+    void expire(long tick) {
+      if (tick - currentTick >= WHEEL_SLOTS) {
+        // Idle for a whole turn, so every deadline has passed
+        for (Transaction transaction : transactions.values()) {
+          counts.decrementAndGet(transaction.state.ordinal());
+          expired.incrementAndGet();
+        }
+        transactions.clear();
+        for (List<Transaction> slot : wheel) {
+          slot.clear();
+        }
+        currentTick = tick;
+        return;
+      }
+      while (currentTick < tick) {
+        currentTick++;
+        List<Transaction> slot = wheel.get((int) (currentTick & (WHEEL_SLOTS - 1)));
+        if (slot.isEmpty()) {
+          continue;
+        }
+        List<Transaction> due = new ArrayList<Transaction>(slot);
+        slot.clear();
+        for (Transaction transaction : due) {
+          if (transactions.get(transaction.gid) != transaction) {
+            // reverted, or expired and started again
+            continue;
+          }
+          if (transaction.lastTick + IDLE_TICKS <= currentTick) {
+            transactions.remove(transaction.gid);
+            counts.decrementAndGet(transaction.state.ordinal());
+            expired.incrementAndGet();
+          } else {
+            schedule(transaction);
+          }
+        }
+      }
+    }
+  }
+}
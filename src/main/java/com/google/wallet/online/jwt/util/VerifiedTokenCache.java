@@ -0,0 +1,234 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import com.google.gson.JsonElement;
+
+import net.oauth.jsontoken.JsonToken;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of successfully verified JWTs, keyed by the SHA-256 digest of the token.
+ * A repeated validation of the same token becomes a digest and a hash lookup until the token's
+ * exp claim or the configured time to live, whichever comes first, and no longer than the
+ * grace period of the retired key it was verified with. The map is split in segments with their
+ * own lock so concurrent lookups rarely contend.
+ *
+ * Cached {@link JsonToken}s are shared between callers and must not be modified.
+ */
+public class VerifiedTokenCache {
+
+  private static final int MAX_SEGMENTS = 16;
+
+  private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 is not available", e);
+      }
+    }
+  };
+
+  private final Segment[] segments;
+  private final int mask;
+  private final long ttlMillis;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxSize maximum number of cached tokens.
+   * @param ttlMillis maximum time a token stays cached, even if its exp is later.
+   */
+  public VerifiedTokenCache(int maxSize, long ttlMillis) {
+    // Power of two segments, each holding an equal share so the total never exceeds maxSize
+    int count = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, maxSize)));
+    this.segments = new Segment[count];
+    this.mask = count - 1;
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment(Math.max(1, maxSize / count));
+    }
+    this.ttlMillis = ttlMillis;
+  }
+
+  /**
+   * Returns the cached result for jwt, verifying and caching it on a miss. Only valid results
+   * are cached, and only for the verifier that produced them.
+   *
+   * @param verifier verifier for the current merchant secret.
+   * @param jwt serialized JWT.
+   * @return the verification result.
+   */
+  public JwtVerifier.Result verify(JwtVerifier verifier, String jwt) {
+    if (jwt == null) {
+      return verifier.verify(null);
+    }
+    Key key = new Key(digest(jwt));
+    Segment segment = segments[key.hash & mask];
+    long now = System.currentTimeMillis();
+
+    CachedToken entry;
+    synchronized (segment) {
+      entry = segment.get(key);
+      if (entry != null && entry.expiresAt <= now) {
+        segment.remove(key);
+        evictions.incrementAndGet();
+        entry = null;
+      }
+    }
+    if (entry != null && entry.verifier == verifier) {
+      hits.incrementAndGet();
+      return entry.result;
+    }
+
+    misses.incrementAndGet();
+    JwtVerifier.Result result = verifier.verify(jwt);
+    if (result.isValid()) {
+      long expiresAt = Math.min(expiresAt(result.getToken(), now), result.getKeyValidUntil());
+      if (expiresAt > now) {
+        synchronized (segment) {
+          segment.put(key, new CachedToken(verifier, result, expiresAt));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Drops every cached token.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return number of tokens dropped because the cache was full or they expired.
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  private long expiresAt(JsonToken token, long now) {
+    long expiresAt = now + ttlMillis;
+    JsonElement exp = token.getPayloadAsJsonObject().get(JsonToken.EXPIRATION);
+    if (exp != null) {
+      // exp is in seconds, the verifier already checked it is a number
+      expiresAt = Math.min(expiresAt, exp.getAsLong() * 1000L);
+    }
+    return expiresAt;
+  }
+
+  private static byte[] digest(String jwt) {
+    // Hash every char in full, distinct strings must never share a key
+    int length = jwt.length();
+    byte[] chars = new byte[length * 2];
+    for (int i = 0; i < length; i++) {
+      char c = jwt.charAt(i);
+      chars[2 * i] = (byte) (c >> 8);
+      chars[2 * i + 1] = (byte) c;
+    }
+    return digests.get().digest(chars);
+  }
+
+  /**
+   * Access ordered map that drops its least recently used entry when full.
+   */
+  private class Segment extends LinkedHashMap<Key, CachedToken> {
+    private final int maxSize;
+
+    Segment(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, CachedToken> eldest) {
+      if (size() > maxSize) {
+        evictions.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * SHA-256 digest of a token.
+   */
+  private static final class Key {
+    private final byte[] digest;
+    private final int hash;
+
+    Key(byte[] digest) {
+      this.digest = digest;
+      // the digest is already uniformly distributed
+      this.hash = (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16
+          | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class CachedToken {
+    final JwtVerifier verifier;
+    final JwtVerifier.Result result;
+    final long expiresAt;
+
+    CachedToken(JwtVerifier verifier, JwtVerifier.Result result, long expiresAt) {
+      this.verifier = verifier;
+      this.result = result;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
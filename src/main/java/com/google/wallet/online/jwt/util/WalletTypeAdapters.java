@@ -0,0 +1,545 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import com.google.wallet.online.jwt.BaseJwt;
+import com.google.wallet.online.jwt.Cart;
+import com.google.wallet.online.jwt.FullWalletRequest;
+import com.google.wallet.online.jwt.JwtRequests;
+import com.google.wallet.online.jwt.JwtRequests.FullWalletContainer;
+import com.google.wallet.online.jwt.JwtRequests.MaskedWalletContainer;
+import com.google.wallet.online.jwt.JwtRequests.TransactionStatusContainer;
+import com.google.wallet.online.jwt.LineItem;
+import com.google.wallet.online.jwt.MaskedWalletRequest;
+import com.google.wallet.online.jwt.Money;
+import com.google.wallet.online.jwt.Pay;
+import com.google.wallet.online.jwt.Ship;
+import com.google.wallet.online.jwt.TransactionStatusNotification;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hand-written Gson serializers and deserializers for the wallet model classes, so converting
+ * them never goes through reflection. Members are written in the order and with the null
+ * omission of Gson's reflective output, so the JSON is unchanged. Unknown members are ignored.
+ *
+ * Deserialized objects are created with the model builders, which means a line item with both
+ * a quantity and a unit price gets its total price computed rather than read. Prices are
+ * written as decimals with the currency's fraction digits and read exactly, in the currency of
+ * the enclosing cart. A line item read on its own has no cart, so its prices are read in the
+ * {@code default_currency_code} currency, USD unless set.
+ */
+final class WalletTypeAdapters {
+
+  // Currency of line items that are read on their own rather than as part of a cart
+  static final String DEFAULT_CURRENCY_CODE = System.getProperty("default_currency_code", "USD");
+
+  private WalletTypeAdapters() {
+  }
+
+  /**
+   * Registers an adapter for every wallet model class.
+   *
+   * @return the builder, for chaining.
+   */
+  static GsonBuilder registerAll(GsonBuilder builder) {
+    return builder
+        .registerTypeAdapter(LineItem.class, new LineItemAdapter())
+        .registerTypeAdapter(Cart.class, new CartAdapter())
+        .registerTypeAdapter(Pay.class, new PayAdapter())
+        .registerTypeAdapter(Ship.class, new ShipAdapter())
+        .registerTypeAdapter(MaskedWalletRequest.class, new MaskedWalletRequestAdapter())
+        .registerTypeAdapter(FullWalletRequest.class, new FullWalletRequestAdapter())
+        .registerTypeAdapter(TransactionStatusNotification.class,
+            new TransactionStatusNotificationAdapter())
+        .registerTypeAdapter(MaskedWalletContainer.class, new MaskedWalletContainerAdapter())
+        .registerTypeAdapter(FullWalletContainer.class, new FullWalletContainerAdapter())
+        .registerTypeAdapter(TransactionStatusContainer.class,
+            new TransactionStatusContainerAdapter());
+  }
+
+  static class LineItemAdapter implements JsonSerializer<LineItem>, JsonDeserializer<LineItem> {
+    public JsonElement serialize(LineItem src, Type typeOfSrc, JsonSerializationContext context) {
+      return toJson(src);
+    }
+
+    public LineItem deserialize(JsonElement json, Type typeOfT,
+        JsonDeserializationContext context) {
+      return toLineItem(json, DEFAULT_CURRENCY_CODE);
+    }
+
+    static JsonObject toJson(LineItem src) {
+      JsonObject json = new JsonObject();
+      addString(json, "description", src.getDescription());
+      addNumber(json, "quantity", src.getQuantity());
+      addMoney(json, "unitPrice", src.getUnitPrice());
+      addMoney(json, "totalPrice", src.getTotalPrice());
+      addEnum(json, "role", src.getRole());
+      return json;
+    }
+
+    static LineItem toLineItem(JsonElement element, String currencyCode) {
+      JsonObject json = asObject(element);
+      if (json == null) {
+        return null;
+      }
+      return LineItem.newBuilder()
+          .setDescription(getString(json, "description"))
+          .setQuantity(getInteger(json, "quantity"))
+          .setUnitPrice(getMoney(json, "unitPrice", currencyCode))
+          .setTotalPrice(getMoney(json, "totalPrice", currencyCode))
+          .setRole(getEnum(json, "role", LineItem.Role.class))
+          .build();
+    }
+  }
+
+  static class CartAdapter implements JsonSerializer<Cart>, JsonDeserializer<Cart> {
+    public JsonElement serialize(Cart src, Type typeOfSrc, JsonSerializationContext context) {
+      return toJson(src);
+    }
+
+    public Cart deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) {
+      return toCart(json);
+    }
+
+    static JsonObject toJson(Cart src) {
+      JsonObject json = new JsonObject();
+      addMoneyString(json, "totalPrice", src.getTotalPrice());
+      addString(json, "currencyCode", src.getCurrencyCode());
+      List<LineItem> lineItems = src.getLineItems();
+      if (lineItems != null) {
+        JsonArray array = new JsonArray();
+        for (LineItem item : lineItems) {
+          // Gson writes null list elements as JSON null
+          array.add(item == null ? null : LineItemAdapter.toJson(item));
+        }
+        json.add("lineItems", array);
+      }
+      return json;
+    }
+
+    static Cart toCart(JsonElement element) {
+      JsonObject json = asObject(element);
+      if (json == null) {
+        return null;
+      }
+      String currencyCode = getString(json, "currencyCode");
+      Cart.Builder cart = Cart.newBuilder()
+          .setTotalPrice(getMoney(json, "totalPrice", currencyCode))
+          .setCurrencyCode(currencyCode);
+      JsonElement lineItems = json.get("lineItems");
+      if (lineItems != null && !lineItems.isJsonNull()) {
+        cart.setLineItems(toLineItems(lineItems, currencyCode));
+      }
+      return cart.build();
+    }
+  }
+
+  static class PayAdapter implements JsonSerializer<Pay>, JsonDeserializer<Pay> {
+    public JsonElement serialize(Pay src, Type typeOfSrc, JsonSerializationContext context) {
+      return toJson(src);
+    }
+
+    public Pay deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) {
+      return toPay(json);
+    }
+
+    static JsonObject toJson(Pay src) {
+      JsonObject json = new JsonObject();
+      addMoneyString(json, "estimatedTotalPrice", src.getEstimatedTotalPrice());
+      addString(json, "currencyCode", src.getCurrencyCode());
+      return json;
+    }
+
+    static Pay toPay(JsonElement element) {
+      JsonObject json = asObject(element);
+      if (json == null) {
+        return null;
+      }
+      String currencyCode = getString(json, "currencyCode");
+      return Pay.newBuilder()
+          .setEstimatedTotalPrice(getMoney(json, "estimatedTotalPrice", currencyCode))
+          .setCurrencyCode(currencyCode)
+          .build();
+    }
+  }
+
+  static class ShipAdapter implements JsonSerializer<Ship>, JsonDeserializer<Ship> {
+    public JsonElement serialize(Ship src, Type typeOfSrc, JsonSerializationContext context) {
+      return new JsonObject();
+    }
+
+    public Ship deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) {
+      return toShip(json);
+    }
+
+    static Ship toShip(JsonElement element) {
+      return asObject(element) == null ? null : new Ship();
+    }
+  }
+
+  static class MaskedWalletRequestAdapter
+      implements JsonSerializer<MaskedWalletRequest>, JsonDeserializer<MaskedWalletRequest> {
+    public JsonElement serialize(MaskedWalletRequest src, Type typeOfSrc,
+        JsonSerializationContext context) {
+      return toJson(src);
+    }
+
+    public MaskedWalletRequest deserialize(JsonElement json, Type typeOfT,
+        JsonDeserializationContext context) {
+      return toMaskedWalletRequest(json);
+    }
+
+    static JsonObject toJson(MaskedWalletRequest src) {
+      JsonObject json = new JsonObject();
+      addString(json, "googleTransactionId", src.getGoogleTransactionId());
+      addString(json, "merchantTransactionId", src.getMerchantTransactionId());
+      addString(json, "clientId", src.getClientId());
+      addString(json, "merchantName", src.getMerchantName());
+      addString(json, "origin", src.getOrigin());
+      addString(json, "email", src.getEmail());
+      addBoolean(json, "phoneNumberRequired", src.getPhoneNumberRequired());
+      if (src.getPay() != null) {
+        json.add("pay", PayAdapter.toJson(src.getPay()));
+      }
+      if (src.getShip() != null) {
+        json.add("ship", new JsonObject());
+      }
+      addBoolean(json, "useMinimalAddresses", src.getUseMinimalAddresses());
+      return json;
+    }
+
+    static MaskedWalletRequest toMaskedWalletRequest(JsonElement element) {
+      JsonObject json = asObject(element);
+      if (json == null) {
+        return null;
+      }
+      MaskedWalletRequest.Builder request = MaskedWalletRequest.newBuilder()
+          .setGoogleTransactionId(getString(json, "googleTransactionId"))
+          .setMerchantTransactionId(getString(json, "merchantTransactionId"))
+          .setClientId(getString(json, "clientId"))
+          .setMerchantName(getString(json, "merchantName"))
+          .setOrigin(getString(json, "origin"))
+          .setEmail(getString(json, "email"))
+          .setPhoneNumberRequired(getBoolean(json, "phoneNumberRequired"))
+          .setPay(PayAdapter.toPay(json.get("pay")))
+          .setShip(ShipAdapter.toShip(json.get("ship")));
+      Boolean useMinimalAddresses = getBoolean(json, "useMinimalAddresses");
+      if (useMinimalAddresses != null) {
+        request.setUseMinimalAddresses(useMinimalAddresses);
+      }
+      return request.build();
+    }
+  }
+
+  static class FullWalletRequestAdapter
+      implements JsonSerializer<FullWalletRequest>, JsonDeserializer<FullWalletRequest> {
+    public JsonElement serialize(FullWalletRequest src, Type typeOfSrc,
+        JsonSerializationContext context) {
+      return toJson(src);
+    }
+
+    public FullWalletRequest deserialize(JsonElement json, Type typeOfT,
+        JsonDeserializationContext context) {
+      return toFullWalletRequest(json);
+    }
+
+    static JsonObject toJson(FullWalletRequest src) {
+      JsonObject json = new JsonObject();
+      addString(json, "googleTransactionId", src.getGoogleTransactionId());
+      addString(json, "clientId", src.getClientId());
+      addString(json, "merchantName", src.getMerchantName());
+      addString(json, "origin", src.getOrigin());
+      if (src.getCart() != null) {
+        json.add("cart", CartAdapter.toJson(src.getCart()));
+      }
+      return json;
+    }
+
+    static FullWalletRequest toFullWalletRequest(JsonElement element) {
+      JsonObject json = asObject(element);
+      if (json == null) {
+        return null;
+      }
+      return FullWalletRequest.newBuilder()
+          .setGoogleTransactionId(getString(json, "googleTransactionId"))
+          .setClientId(getString(json, "clientId"))
+          .setMerchantName(getString(json, "merchantName"))
+          .setOrigin(getString(json, "origin"))
+          .setCart(CartAdapter.toCart(json.get("cart")))
+          .build();
+    }
+  }
+
+  static class TransactionStatusNotificationAdapter
+      implements JsonSerializer<TransactionStatusNotification>,
+      JsonDeserializer<TransactionStatusNotification> {
+    public JsonElement serialize(TransactionStatusNotification src, Type typeOfSrc,
+        JsonSerializationContext context) {
+      return toJson(src);
+    }
+
+    public TransactionStatusNotification deserialize(JsonElement json, Type typeOfT,
+        JsonDeserializationContext context) {
+      return toTransactionStatusNotification(json);
+    }
+
+    static JsonObject toJson(TransactionStatusNotification src) {
+      JsonObject json = new JsonObject();
+      addString(json, "googleTransactionId", src.getGoogleTransactionId());
+      addString(json, "merchantName", src.getMerchantName());
+      addEnum(json, "status", src.getStatus());
+      return json;
+    }
+
+    static TransactionStatusNotification toTransactionStatusNotification(JsonElement element) {
+      JsonObject json = asObject(element);
+      if (json == null) {
+        return null;
+      }
+      return TransactionStatusNotification.newBuilder()
+          .setGoogleTransactionId(getString(json, "googleTransactionId"))
+          .setMerchantName(getString(json, "merchantName"))
+          .setStatus(getEnum(json, "status", TransactionStatusNotification.Status.class))
+          .build();
+    }
+  }
+
+  static class MaskedWalletContainerAdapter
+      implements JsonSerializer<MaskedWalletContainer>, JsonDeserializer<MaskedWalletContainer> {
+    public JsonElement serialize(MaskedWalletContainer src, Type typeOfSrc,
+        JsonSerializationContext context) {
+      JsonObject json = new JsonObject();
+      if (src.getRequest() != null) {
+        json.add("request", MaskedWalletRequestAdapter.toJson(src.getRequest()));
+      }
+      addClaims(json, src);
+      return json;
+    }
+
+    public MaskedWalletContainer deserialize(JsonElement element, Type typeOfT,
+        JsonDeserializationContext context) {
+      JsonObject json = asObject(element);
+      if (json == null) {
+        return null;
+      }
+      MaskedWalletContainer.Builder container = JwtRequests.newMaskedWalletBuilder()
+          .setRequest(MaskedWalletRequestAdapter.toMaskedWalletRequest(json.get("request")));
+      return setClaims(container, json).build();
+    }
+  }
+
+  static class FullWalletContainerAdapter
+      implements JsonSerializer<FullWalletContainer>, JsonDeserializer<FullWalletContainer> {
+    public JsonElement serialize(FullWalletContainer src, Type typeOfSrc,
+        JsonSerializationContext context) {
+      JsonObject json = new JsonObject();
+      if (src.getRequest() != null) {
+        json.add("request", FullWalletRequestAdapter.toJson(src.getRequest()));
+      }
+      addClaims(json, src);
+      return json;
+    }
+
+    public FullWalletContainer deserialize(JsonElement element, Type typeOfT,
+        JsonDeserializationContext context) {
+      JsonObject json = asObject(element);
+      if (json == null) {
+        return null;
+      }
+      FullWalletContainer.Builder container = JwtRequests.newFullWalletBuilder()
+          .setRequest(FullWalletRequestAdapter.toFullWalletRequest(json.get("request")));
+      return setClaims(container, json).build();
+    }
+  }
+
+  static class TransactionStatusContainerAdapter implements
+      JsonSerializer<TransactionStatusContainer>, JsonDeserializer<TransactionStatusContainer> {
+    public JsonElement serialize(TransactionStatusContainer src, Type typeOfSrc,
+        JsonSerializationContext context) {
+      JsonObject json = new JsonObject();
+      if (src.getRequest() != null) {
+        json.add("request",
+            TransactionStatusNotificationAdapter.toJson(src.getRequest()));
+      }
+      addClaims(json, src);
+      return json;
+    }
+
+    public TransactionStatusContainer deserialize(JsonElement element, Type typeOfT,
+        JsonDeserializationContext context) {
+      JsonObject json = asObject(element);
+      if (json == null) {
+        return null;
+      }
+      TransactionStatusContainer.Builder container = JwtRequests.newTransactionStatusBuilder()
+          .setRequest(TransactionStatusNotificationAdapter.toTransactionStatusNotification(
+              json.get("request")));
+      return setClaims(container, json).build();
+    }
+  }
+
+  private static List<LineItem> toLineItems(JsonElement element, String currencyCode) {
+    if (!element.isJsonArray()) {
+      throw new JsonParseException("Expected an array of line items: " + element);
+    }
+    JsonArray array = element.getAsJsonArray();
+    List<LineItem> items = new ArrayList<LineItem>(array.size());
+    for (JsonElement item : array) {
+      items.add(LineItemAdapter.toLineItem(item, currencyCode));
+    }
+    return items;
+  }
+
+  // BaseJwt members come after the subclass ones in Gson's reflective output
+  private static void addClaims(JsonObject json, BaseJwt src) {
+    addString(json, "iss", src.getIss());
+    addString(json, "aud", src.getAud());
+    addString(json, "typ", src.getTyp());
+    addNumber(json, "iat", src.getIat());
+    addNumber(json, "exp", src.getExp());
+  }
+
+  // BaseJwt.Builder isn't visible here, so there is one overload per container builder
+  private static MaskedWalletContainer.Builder setClaims(MaskedWalletContainer.Builder container,
+      JsonObject json) {
+    return container.setIss(getString(json, "iss"))
+        .setAud(getString(json, "aud"))
+        .setTyp(getString(json, "typ"))
+        .setIat(getLong(json, "iat"))
+        .setExp(getLong(json, "exp"));
+  }
+
+  private static FullWalletContainer.Builder setClaims(FullWalletContainer.Builder container,
+      JsonObject json) {
+    return container.setIss(getString(json, "iss"))
+        .setAud(getString(json, "aud"))
+        .setTyp(getString(json, "typ"))
+        .setIat(getLong(json, "iat"))
+        .setExp(getLong(json, "exp"));
+  }
+
+  private static TransactionStatusContainer.Builder setClaims(
+      TransactionStatusContainer.Builder container, JsonObject json) {
+    return container.setIss(getString(json, "iss"))
+        .setAud(getString(json, "aud"))
+        .setTyp(getString(json, "typ"))
+        .setIat(getLong(json, "iat"))
+        .setExp(getLong(json, "exp"));
+  }
+
+  private static void addString(JsonObject json, String name, String value) {
+    if (value != null) {
+      json.addProperty(name, value);
+    }
+  }
+
+  private static void addNumber(JsonObject json, String name, Number value) {
+    if (value != null) {
+      json.addProperty(name, value);
+    }
+  }
+
+  private static void addMoney(JsonObject json, String name, Money value) {
+    if (value != null) {
+      json.addProperty(name, value.toBigDecimal());
+    }
+  }
+
+  private static void addMoneyString(JsonObject json, String name, Money value) {
+    if (value != null) {
+      json.addProperty(name, value.toString());
+    }
+  }
+
+  private static void addBoolean(JsonObject json, String name, Boolean value) {
+    if (value != null) {
+      json.addProperty(name, value);
+    }
+  }
+
+  private static void addEnum(JsonObject json, String name, Enum<?> value) {
+    if (value != null) {
+      json.addProperty(name, value.name());
+    }
+  }
+
+  private static JsonObject asObject(JsonElement element) {
+    if (element == null || element.isJsonNull()) {
+      return null;
+    }
+    if (!element.isJsonObject()) {
+      throw new JsonParseException("Expected a JSON object: " + element);
+    }
+    return element.getAsJsonObject();
+  }
+
+  private static JsonElement getValue(JsonObject json, String name) {
+    JsonElement value = json.get(name);
+    return value == null || value.isJsonNull() ? null : value;
+  }
+
+  private static String getString(JsonObject json, String name) {
+    JsonElement value = getValue(json, name);
+    return value == null ? null : value.getAsString();
+  }
+
+  private static Integer getInteger(JsonObject json, String name) {
+    JsonElement value = getValue(json, name);
+    return value == null ? null : value.getAsInt();
+  }
+
+  private static Long getLong(JsonObject json, String name) {
+    JsonElement value = getValue(json, name);
+    return value == null ? null : value.getAsLong();
+  }
+
+  private static Money getMoney(JsonObject json, String name, String currencyCode) {
+    JsonElement value = getValue(json, name);
+    if (value == null) {
+      return null;
+    }
+    if (currencyCode == null) {
+      throw new JsonParseException("No currencyCode for " + name);
+    }
+    try {
+      return Money.parse(value.getAsString(), currencyCode);
+    } catch (IllegalArgumentException e) {
+      throw new JsonParseException("Invalid " + name + ": " + value, e);
+    }
+  }
+
+  private static Boolean getBoolean(JsonObject json, String name) {
+    JsonElement value = getValue(json, name);
+    return value == null ? null : value.getAsBoolean();
+  }
+
+  private static <E extends Enum<E>> E getEnum(JsonObject json, String name, Class<E> type) {
+    JsonElement value = getValue(json, name);
+    return value == null ? null : Enum.valueOf(type, value.getAsString());
+  }
+}
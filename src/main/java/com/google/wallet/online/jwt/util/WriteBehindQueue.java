@@ -0,0 +1,301 @@
+/**
+ * Copyright 2013 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.wallet.online.jwt.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue that hands its items to a {@link Sink} in batches on a worker thread, so the
+ * threads adding them don't wait for the sink. A batch is written once it holds the maximum
+ * number of items, or once the time window since its first item has passed. When the queue is
+ * full, {@link #offer} waits for room up to a timeout and then gives up, which pushes back on
+ * callers instead of growing without bound. {@link #offerAll} queues a group of items whole or
+ * not at all.
+ *
+ * The worker is a daemon thread started with the queue, so this can't be used on App Engine
+ * frontends. {@link #shutdown} stops it once the items already queued are written.
+ *
+ * @param <T> item type.
+ */
+public class WriteBehindQueue<T> {
+
+  private static final Logger logger = Logger.getLogger(WriteBehindQueue.class.getSimpleName());
+
+  // How often an idle worker checks whether the queue was shut down
+  private static final long IDLE_CHECK_MILLIS = 100;
+
+  /**
+   * Where the batches go.
+   *
+   * @param <T> item type.
+   */
+  public interface Sink<T> {
+    /**
+     * Writes a batch, in the order the items were offered.
+     *
+     * @throws IOException if the batch couldn't be written, its items are dropped.
+     */
+    void write(List<T> batch) throws IOException;
+  }
+
+  /**
+   * Sink that keeps every item in memory, for tests.
+   *
+   * @param <T> item type.
+   */
+  public static class MemorySink<T> implements Sink<T> {
+    private final List<T> items = new ArrayList<T>();
+    private int batches;
+
+    @Override
+    public synchronized void write(List<T> batch) {
+      items.addAll(batch);
+      batches++;
+    }
+
+    /**
+     * @return copy of the items written so far.
+     */
+    public synchronized List<T> getItems() {
+      return new ArrayList<T>(items);
+    }
+
+    public synchronized int getBatchCount() {
+      return batches;
+    }
+  }
+
+  private final BlockingQueue<T> queue;
+  private final int capacity;
+  // Held while adding, so room seen free stays free. The worker notifies it when it takes items
+  private final Object room = new Object();
+  private final Sink<T> sink;
+  private final int maxBatch;
+  private final long windowMillis;
+  private final Thread worker;
+  // Set holding room, nothing is added once it is
+  private volatile boolean stopped;
+
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+
+  /**
+   * Creates the queue and starts its worker.
+   *
+   * @param name name of the worker thread.
+   * @param sink where the batches go.
+   * @param capacity maximum number of items waiting to be written.
+   * @param maxBatch maximum number of items per batch.
+   * @param windowMillis time a batch waits for more items after its first.
+   */
+  public WriteBehindQueue(String name, Sink<T> sink, int capacity, int maxBatch,
+      long windowMillis) {
+    this.queue = new ArrayBlockingQueue<T>(capacity);
+    this.capacity = capacity;
+    this.sink = sink;
+    this.maxBatch = maxBatch;
+    this.windowMillis = windowMillis;
+    this.worker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Queues item, waiting up to timeoutMillis for room.
+   *
+   * @return false if the queue stayed full.
+   * @throws InterruptedException if interrupted while waiting for room.
+   */
+  public boolean offer(T item, long timeoutMillis) throws InterruptedException {
+    return offerAll(Collections.singletonList(item), timeoutMillis);
+  }
+
+  /**
+   * Queues all of items, waiting up to timeoutMillis for room for all of them. Either all are
+   * queued, in order, or none is.
+   *
+   * @return false if the queue didn't have room for all of them in time, or was shut down.
+   * @throws InterruptedException if interrupted while waiting for room.
+   */
+  public boolean offerAll(List<? extends T> items, long timeoutMillis)
+      throws InterruptedException {
+    if (items.size() <= capacity) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      synchronized (room) {
+        while (!stopped) {
+          // only the worker takes items out, and it can only make more room
+          if (queue.remainingCapacity() >= items.size()) {
+            queue.addAll(items);
+            return true;
+          }
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            break;
+          }
+          room.wait(wait);
+        }
+      }
+    }
+    rejected.addAndGet(items.size());
+    return false;
+  }
+
+  /**
+   * Stops taking items and waits for the worker to write those already queued, then lets it
+   * end. Items offered from then on are rejected.
+   *
+   * @param timeoutMillis how long to wait for the worker. It is interrupted after that, and
+   *     the items it hasn't written are counted as dropped.
+   * @return whether every item queued was handed to the sink.
+   */
+  public boolean shutdown(long timeoutMillis) {
+    synchronized (room) {
+      stopped = true;
+      // producers waiting for room give up
+      room.notifyAll();
+    }
+    try {
+      worker.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!worker.isAlive()) {
+      return true;
+    }
+    worker.interrupt();
+    int left = queue.size();
+    queue.clear();
+    dropped.addAndGet(left);
+    logger.log(Level.SEVERE, "Dropped {0} items still queued after {1} ms",
+        new Object[] {left, timeoutMillis});
+    return false;
+  }
+
+  /**
+   * @return number of items waiting to be written, not counting the batch being written.
+   */
+  public int getPendingCount() {
+    return queue.size();
+  }
+
+  /**
+   * @return number of items written to the sink.
+   */
+  public long getWrittenCount() {
+    return written.get();
+  }
+
+  /**
+   * @return number of items lost because the sink failed.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * @return number of items refused because the queue was full.
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /**
+   * @return number of batches written, lower than the written count when items were coalesced.
+   */
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  private void drain() {
+    List<T> batch = new ArrayList<T>(maxBatch);
+    while (true) {
+      try {
+        T first = queue.poll(IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          // read after stopped, so an item offered before the stop is seen here
+          if (stopped && queue.isEmpty()) {
+            return;
+          }
+          continue;
+        }
+        batch.add(first);
+        madeRoom();
+        long deadline = System.currentTimeMillis() + windowMillis;
+        while (batch.size() < maxBatch) {
+          // take what is already there without waking up for each item
+          if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+            madeRoom();
+            continue;
+          }
+          // once stopped, write what is there rather than wait for more
+          long wait = stopped ? 0 : deadline - System.currentTimeMillis();
+          T next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+          madeRoom();
+        }
+      } catch (InterruptedException e) {
+        // only a shutdown that timed out interrupts the worker, write what was taken and stop
+        write(batch);
+        return;
+      }
+      write(batch);
+      batch.clear();
+    }
+  }
+
+  private void madeRoom() {
+    synchronized (room) {
+      room.notifyAll();
+    }
+  }
+
+  private void write(List<T> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    try {
+      sink.write(batch);
+      written.addAndGet(batch.size());
+      batches.incrementAndGet();
+    } catch (IOException e) {
+      dropped.addAndGet(batch.size());
+      logger.log(Level.SEVERE, "Dropped a batch of " + batch.size(), e);
+    } catch (RuntimeException e) {
+      // the worker has to survive a broken sink
+      dropped.addAndGet(batch.size());
+      logger.log(Level.SEVERE, "Dropped a batch of " + batch.size(), e);
+    }
+  }
+}
@@ -151,21 +151,20 @@ var bikeStore = bikeStore || {};
     // Persist Masked Wallet Response and Transaction Id for page refreshes.
     bikeStore.Cookie.setMaskedWallet(param.response.response);
     bikeStore.Cookie.setTransactionId(wallet.transactionId);
-    // Validate the JWT before proceeding
-    $.post(wallet.VALIDATE_URL, 'jwt=' + param.jwt, function(response) {
-      if (response === 'true') {
+    // Ajax call to server to create the change item JWT, which also validates
+    // the response JWT before proceeding. The change JWT is created in the
+    // handler to reduce latency in the future.
+    $.post(wallet.MWR_URL, wallet.itemToPostBody(wallet.transactionId) +
+      '&format=envelope&validate=' + encodeURIComponent(param.jwt),
+      function(envelope) {
+      wallet.changeJwt = envelope.jwt;
+      bikeStore.Cookie.setChangeJwt(envelope.jwt);
+      if (envelope.valid) {
         $.mobile.changePage('#confirmation-page', {
           transition: transitionType
         });
       }
-    });
-    // Ajax call to server to create the change item JWT.
-    // This is called in the handler to reduce latency in the future.
-    $.post(wallet.MWR_URL, wallet.itemToPostBody(wallet.transactionId),
-      function(param) {
-      wallet.changeJwt = param;
-      bikeStore.Cookie.setChangeJwt(param);
-    });
+    }, 'json');
   };
 
   /**